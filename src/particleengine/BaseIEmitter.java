@@ -13,6 +13,9 @@ import org.lwjgl.util.vector.Vector2f;
  */
 @SuppressWarnings("unused")
 public abstract class BaseIEmitter extends IEmitter {
+    /** Returned by {@link #getLocation()}, which is called several times per burst. */
+    private final Vector2f location = new Vector2f();
+
     @Override
     public CombatEngineLayers getLayer() {
         return CombatEngineLayers.ABOVE_PARTICLES_LOWER;
@@ -28,7 +31,7 @@ public abstract class BaseIEmitter extends IEmitter {
 
     @Override
     public Vector2f getLocation() {
-        return new Vector2f();
+        return location;
     }
 
     @Override
@@ -0,0 +1,33 @@
+package particleengine;
+
+import com.fs.starfarer.api.combat.ViewportAPI;
+import org.lwjgl.util.vector.Vector2f;
+
+/** Axis-aligned box, in world coordinates, that some set of particles is guaranteed to stay inside. */
+record Bounds(float minX, float minY, float maxX, float maxY) {
+    /** For particles whose position can't be bounded ahead of time, e.g. those that follow a tracked emitter. */
+    static final Bounds UNBOUNDED = new Bounds(
+            Float.NEGATIVE_INFINITY,
+            Float.NEGATIVE_INFINITY,
+            Float.POSITIVE_INFINITY,
+            Float.POSITIVE_INFINITY);
+
+    static Bounds around(Vector2f center, float radius) {
+        return new Bounds(center.x - radius, center.y - radius, center.x + radius, center.y + radius);
+    }
+
+    /** @return The smallest box containing both this and {@code other}. */
+    Bounds union(Bounds other) {
+        if (this == UNBOUNDED || other == UNBOUNDED) return UNBOUNDED;
+        return new Bounds(
+                Math.min(minX, other.minX),
+                Math.min(minY, other.minY),
+                Math.max(maxX, other.maxX),
+                Math.max(maxY, other.maxY));
+    }
+
+    boolean intersects(ViewportAPI viewport) {
+        float llx = viewport.getLLX(), lly = viewport.getLLY();
+        return maxX >= llx && minX <= llx + viewport.getVisibleWidth() && maxY >= lly && minY <= lly + viewport.getVisibleHeight();
+    }
+}
@@ -0,0 +1,74 @@
+package particleengine;
+
+import org.lwjgl.util.vector.Vector2f;
+
+import java.util.Arrays;
+
+/**
+ * Per-burst values that are the same for every particle in a burst: the emitter's location and facing at generation
+ * time, its index in the {@link EmitterBufferHandler}, if tracked, and its sprite's entry in a {@link SpriteArray}, if
+ * any. Particles store only the id of their burst, and the vertex shader looks the rest up in this table's storage
+ * buffer.
+ */
+class BurstTable implements TimingWheel.Handler {
+    /**
+     * vec2 emitter location, float emitter facing in radians, int tracked emitter index, int sprite entry; in bytes.
+     * Padded to a multiple of the vec2's alignment, as std430 does.
+     */
+    private static final int ELEMENT_SIZE = 24;
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private final StorageBuffer storage = new StorageBuffer(ParticleShader.burstBinding, ELEMENT_SIZE, INITIAL_CAPACITY);
+    /** Stack of ids that were freed and can be reused. */
+    private int[] freeIds = new int[64];
+    private int numFreeIds = 0;
+    /** Lowest id that has never been handed out. */
+    private int nextId = 0;
+
+    /** @return The new burst's id. */
+    int add(Vector2f emitterLocation, float emitterXDir, int trackedEmitterIndex, int spriteEntry) {
+        int id;
+        if (numFreeIds > 0) {
+            id = freeIds[--numFreeIds];
+        } else {
+            id = nextId++;
+            storage.ensureCapacity(nextId);
+        }
+        int offset = id * ELEMENT_SIZE;
+        storage.data()
+                .putFloat(offset, emitterLocation.x)
+                .putFloat(offset + 4, emitterLocation.y)
+                .putFloat(offset + 8, emitterXDir)
+                .putInt(offset + 12, trackedEmitterIndex)
+                .putInt(offset + 16, spriteEntry);
+        storage.markDirty(id, 1);
+        return id;
+    }
+
+    /**
+     * Makes {@code id} available for reuse. Should only be called once every particle in the burst is dead; dead
+     * particles draw nothing, so it doesn't matter what their burst's entry holds afterwards.
+     */
+    void free(int id) {
+        if (numFreeIds >= freeIds.length) {
+            freeIds = Arrays.copyOf(freeIds, freeIds.length * 2);
+        }
+        freeIds[numFreeIds++] = id;
+    }
+
+    /** Frees burst {@code id}, for scheduling with {@link Particles#doAtTime(TimingWheel.Handler, Object, int, float)}. */
+    @Override
+    public void onEvent(Object payload, int id) {
+        free(id);
+    }
+
+    /** Uploads any new bursts and binds the table for rendering. */
+    void uploadAndBind() {
+        storage.upload();
+        storage.bind();
+    }
+
+    void delete() {
+        storage.delete();
+    }
+}
@@ -0,0 +1,105 @@
+package particleengine;
+
+import java.util.Arrays;
+
+/**
+ * A {@link ParticleAllocator}'s live clusters, ordered by death time so that the allocator can reclaim each one as
+ * soon as its last particle dies. A binary min-heap kept in parallel arrays; each cluster knows its own index in the
+ * heap, so a cluster whose death time is pushed back by a merge can be moved without searching for it.
+ */
+class ClusterDeathQueue {
+    private static final int INITIAL_CAPACITY = 64;
+
+    private float[] deathTimes = new float[INITIAL_CAPACITY];
+    private int[] arenas = new int[INITIAL_CAPACITY];
+    private ParticleChunk.AllocatedClusterData[] clusters = new ParticleChunk.AllocatedClusterData[INITIAL_CAPACITY];
+    private int size = 0;
+
+    /** Adds a cluster in arena {@code arenaIndex} that isn't in the queue yet. */
+    void add(ParticleChunk.AllocatedClusterData clusterData, int arenaIndex) {
+        if (size == deathTimes.length) {
+            int newLength = 2 * size;
+            deathTimes = Arrays.copyOf(deathTimes, newLength);
+            arenas = Arrays.copyOf(arenas, newLength);
+            clusters = Arrays.copyOf(clusters, newLength);
+        }
+        set(size, clusterData, arenaIndex);
+        siftUp(size++);
+    }
+
+    /** Moves a cluster already in the queue to match its death time, which may only have increased. */
+    void deathTimeIncreased(ParticleChunk.AllocatedClusterData clusterData) {
+        int index = clusterData.queueIndex;
+        deathTimes[index] = clusterData.getDeathTime();
+        siftDown(index);
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    /** @return Death time of the cluster that dies first. The queue must not be empty. */
+    float peekDeathTime() {
+        return deathTimes[0];
+    }
+
+    /** @return Arena of the cluster that dies first. The queue must not be empty. */
+    int peekArena() {
+        return arenas[0];
+    }
+
+    /** Removes and returns the cluster that dies first. The queue must not be empty. */
+    ParticleChunk.AllocatedClusterData poll() {
+        ParticleChunk.AllocatedClusterData first = clusters[0];
+        first.queueIndex = -1;
+        size--;
+        if (size > 0) {
+            set(0, clusters[size], arenas[size]);
+            siftDown(0);
+        }
+        clusters[size] = null;
+        return first;
+    }
+
+    void clear() {
+        Arrays.fill(clusters, 0, size, null);
+        size = 0;
+    }
+
+    private void set(int index, ParticleChunk.AllocatedClusterData clusterData, int arenaIndex) {
+        deathTimes[index] = clusterData.getDeathTime();
+        arenas[index] = arenaIndex;
+        clusters[index] = clusterData;
+        clusterData.queueIndex = index;
+    }
+
+    private void siftUp(int index) {
+        ParticleChunk.AllocatedClusterData clusterData = clusters[index];
+        int arenaIndex = arenas[index];
+        float deathTime = deathTimes[index];
+        while (index > 0) {
+            int parent = (index - 1) >>> 1;
+            if (deathTimes[parent] <= deathTime) break;
+            set(index, clusters[parent], arenas[parent]);
+            index = parent;
+        }
+        set(index, clusterData, arenaIndex);
+    }
+
+    private void siftDown(int index) {
+        ParticleChunk.AllocatedClusterData clusterData = clusters[index];
+        int arenaIndex = arenas[index];
+        float deathTime = deathTimes[index];
+        int half = size >>> 1;
+        while (index < half) {
+            int child = 2 * index + 1;
+            if (child + 1 < size && deathTimes[child + 1] < deathTimes[child]) {
+                child++;
+            }
+            if (deathTime <= deathTimes[child]) break;
+            set(index, clusters[child], arenas[child]);
+            index = child;
+        }
+        set(index, clusterData, arenaIndex);
+    }
+}
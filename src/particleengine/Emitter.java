@@ -82,6 +82,79 @@ public class Emitter extends IEmitter {
         this.sprite = sprite;
     }
 
+    /** Snapshot of {@code source}, see {@link #snapshot(IEmitter)}. */
+    private Emitter(Emitter source) {
+        super(new ParticleRandom(source.getRandom()));
+        copyFrom(source);
+    }
+
+    /** Sets every one of this emitter's properties to {@code source}'s, in place. */
+    private void copyFrom(Emitter source) {
+        sfactor = source.sfactor;
+        dfactor = source.dfactor;
+        blendMode = source.blendMode;
+        sprite = source.sprite;
+        minLife = source.minLife;
+        maxLife = source.maxLife;
+        location.set(source.location);
+        minOffset.set(source.minOffset);
+        maxOffset.set(source.maxOffset);
+        minVelocity.set(source.minVelocity);
+        maxVelocity.set(source.maxVelocity);
+        minAcceleration.set(source.minAcceleration);
+        maxAcceleration.set(source.maxAcceleration);
+        minPositionSpread = source.minPositionSpread;
+        maxPositionSpread = source.maxPositionSpread;
+        minVelocitySpread = source.minVelocitySpread;
+        maxVelocitySpread = source.maxVelocitySpread;
+        minAccelerationSpread = source.minAccelerationSpread;
+        maxAccelerationSpread = source.maxAccelerationSpread;
+        minTheta = source.minTheta;
+        maxTheta = source.maxTheta;
+        minW = source.minW;
+        maxW = source.maxW;
+        minAlpha = source.minAlpha;
+        maxAlpha = source.maxAlpha;
+        System.arraycopy(source.minSizeDataX, 0, minSizeDataX, 0, minSizeDataX.length);
+        System.arraycopy(source.maxSizeDataX, 0, maxSizeDataX, 0, maxSizeDataX.length);
+        System.arraycopy(source.minSizeDataY, 0, minSizeDataY, 0, minSizeDataY.length);
+        System.arraycopy(source.maxSizeDataY, 0, maxSizeDataY, 0, maxSizeDataY.length);
+        minFadeIn = source.minFadeIn;
+        maxFadeIn = source.maxFadeIn;
+        minFadeOut = source.minFadeOut;
+        maxFadeOut = source.maxFadeOut;
+        System.arraycopy(source.startColor, 0, startColor, 0, startColor.length);
+        System.arraycopy(source.startColorRandom, 0, startColorRandom, 0, startColorRandom.length);
+        System.arraycopy(source.minColorShift, 0, minColorShift, 0, minColorShift.length);
+        System.arraycopy(source.maxColorShift, 0, maxColorShift, 0, maxColorShift.length);
+        minRadialVelocity = source.minRadialVelocity;
+        maxRadialVelocity = source.maxRadialVelocity;
+        minRadialAcceleration = source.minRadialAcceleration;
+        maxRadialAcceleration = source.maxRadialAcceleration;
+        minRadialW = source.minRadialW;
+        maxRadialW = source.maxRadialW;
+        minRadialAlpha = source.minRadialAlpha;
+        maxRadialAlpha = source.maxRadialAlpha;
+        minSinXAmplitude = source.minSinXAmplitude;
+        maxSinXAmplitude = source.maxSinXAmplitude;
+        minSinXFrequency = source.minSinXFrequency;
+        maxSinXFrequency = source.maxSinXFrequency;
+        minSinXPhase = source.minSinXPhase;
+        maxSinXPhase = source.maxSinXPhase;
+        minSinYAmplitude = source.minSinYAmplitude;
+        maxSinYAmplitude = source.maxSinYAmplitude;
+        minSinYFrequency = source.minSinYFrequency;
+        maxSinYFrequency = source.maxSinYFrequency;
+        minSinYPhase = source.minSinYPhase;
+        maxSinYPhase = source.maxSinYPhase;
+        xAxis.set(source.xAxis);
+        syncSize = source.syncSize;
+        layer = source.layer;
+        campaignLayer = source.campaignLayer;
+        alwaysRenderInCampaign = source.alwaysRenderInCampaign;
+        inactiveBorder = source.inactiveBorder;
+    }
+
     /**
      * Sets the "render radius" of the emitter. Formally, if an emitter is outside the box {@code [-amount,W+amount]x[-amount,H+amount]}
      * relative to the viewport when particles would have been generated, that generate call is ignored.
@@ -727,89 +800,212 @@ public class Emitter extends IEmitter {
         return true;
     }
 
+    /**
+     * Samples a particle the same way as {@link #initParticle(int, ParticleWriter)}, so that both give the same
+     * particles for the same seed, and returns it as a new {@link ParticleData}.
+     */
     @Override
     protected ParticleData initParticle(int id) {
-        ParticleData data = new ParticleData();
-        float twoPi = 2f * (float) Math.PI;
-
-        Vector2f newPos = new Vector2f(
-                Utils.randBetween(minOffset.x, maxOffset.x),
-                Utils.randBetween(minOffset.y, maxOffset.y));
-        Vector2f.add(newPos, Utils.randomPointInRing(new Vector2f(), minPositionSpread, maxPositionSpread), newPos);
-        data.offset(newPos);
-
-        Vector2f newVel = new Vector2f(
-                Utils.randBetween(minVelocity.x, maxVelocity.x),
-                Utils.randBetween(minVelocity.y, maxVelocity.y));
-        Vector2f.add(newVel, Utils.randomPointInRing(new Vector2f(), minVelocitySpread, maxVelocitySpread), newVel);
-        if (newPos.lengthSquared() > 0f) {
-            newPos.normalise();
-            newPos.scale(Utils.randBetween(minRadialVelocity, maxRadialVelocity));
-            Vector2f.add(newVel, newPos, newVel);
-        }
-        data.velocity(newVel);
-
-        Vector2f newAcc = new Vector2f(
-                Utils.randBetween(minAcceleration.x, maxAcceleration.x),
-                Utils.randBetween(minAcceleration.y, maxAcceleration.y));
-        Vector2f.add(newAcc, Utils.randomPointInRing(new Vector2f(), minAccelerationSpread, maxAccelerationSpread), newAcc);
-        if (newPos.lengthSquared() > 0f) {
-            newPos.normalise();
-            newPos.scale(Utils.randBetween(minRadialAcceleration, maxRadialAcceleration));
-            Vector2f.add(newAcc, newPos, newAcc);
+        ParticleWriter writer = new ParticleWriter();
+        writer.reset();
+        sampleParticle(writer);
+        return writer.toParticleData();
+    }
+
+    /**
+     * Same as {@link #initParticle(int)}, but writes the particle straight to {@code writer} without allocating.
+     * If a subclass overrides {@link #initParticle(int)}, that is used instead.
+     */
+    @Override
+    protected boolean initParticle(int id, ParticleWriter writer) {
+        if (overridesInitParticle.get(getClass())) {
+            return super.initParticle(id, writer);
         }
-        data.acceleration(newAcc);
-
-        float newSinXAmplitude = Utils.randBetween(minSinXAmplitude, maxSinXAmplitude);
-        float newSinXFrequency = Utils.randBetween(minSinXFrequency, maxSinXFrequency);
-        float newSinXPhase = Utils.randBetween(minSinXPhase, maxSinXPhase);
-        data.sinusoidalXMotion(newSinXAmplitude, newSinXFrequency, newSinXPhase);
-
-        float newSinYAmplitude = Utils.randBetween(minSinYAmplitude, maxSinYAmplitude);
-        float newSinYFrequency = Utils.randBetween(minSinYFrequency, maxSinYFrequency);
-        float newSinYPhase = Utils.randBetween(minSinYPhase, maxSinYPhase);
-        data.sinusoidalYMotion(newSinYAmplitude, newSinYFrequency, newSinYPhase);
-
-        float newTheta = Utils.randBetween(minTheta, maxTheta);
-        data.facing(newTheta);
-        float newW = Utils.randBetween(minW, maxW);
-        data.turnRate(newW);
-        float newAlpha = Utils.randBetween(minAlpha, maxAlpha);
-        data.turnAcceleration(newAlpha);
-
-        float newRadialW = Utils.randBetween(minRadialW, maxRadialW);
-        data.revolutionRate(newRadialW);
-        float newRadialAlpha = Utils.randBetween(minRadialAlpha, maxRadialAlpha);
-        data.revolutionAcceleration(newRadialAlpha);
-
-        float[] newSizeDataX = new float[3];
-        float[] newSizeDataY = new float[3];
-        for (int j = 0; j < 3; j++) {
-            newSizeDataX[j] = Utils.randBetween(minSizeDataX[j], maxSizeDataX[j]);
-            newSizeDataY[j] = syncSize ? newSizeDataX[j] : Utils.randBetween(minSizeDataY[j], maxSizeDataY[j]);
+        sampleParticle(writer);
+        return true;
+    }
+
+    /**
+     * Samples every property of a particle from this emitter's ranges and sets it on {@code writer}. The only
+     * sampler the default emitter has, so every way of generating its particles draws random values in this order.
+     * Radial velocity and radial acceleration both push away from the emitter along the particle's offset.
+     */
+    private void sampleParticle(ParticleWriter writer) {
+        ParticleRandom random = getRandom();
+
+        float theta = randomAngle(random), r = randomRadiusInRing(random, minPositionSpread, maxPositionSpread);
+        float posX = random.nextFloat(minOffset.x, maxOffset.x) + r * (float) Math.cos(theta);
+        float posY = random.nextFloat(minOffset.y, maxOffset.y) + r * (float) Math.sin(theta);
+        writer.offset(posX, posY);
+        float posLength = (float) Math.hypot(posX, posY);
+        float outwardX = posLength > 0f ? posX / posLength : 0f, outwardY = posLength > 0f ? posY / posLength : 0f;
+
+        theta = randomAngle(random);
+        r = randomRadiusInRing(random, minVelocitySpread, maxVelocitySpread);
+        float radial = posLength > 0f ? random.nextFloat(minRadialVelocity, maxRadialVelocity) : 0f;
+        writer.velocity(
+                random.nextFloat(minVelocity.x, maxVelocity.x) + r * (float) Math.cos(theta) + outwardX * radial,
+                random.nextFloat(minVelocity.y, maxVelocity.y) + r * (float) Math.sin(theta) + outwardY * radial);
+
+        theta = randomAngle(random);
+        r = randomRadiusInRing(random, minAccelerationSpread, maxAccelerationSpread);
+        radial = posLength > 0f ? random.nextFloat(minRadialAcceleration, maxRadialAcceleration) : 0f;
+        writer.acceleration(
+                random.nextFloat(minAcceleration.x, maxAcceleration.x) + r * (float) Math.cos(theta) + outwardX * radial,
+                random.nextFloat(minAcceleration.y, maxAcceleration.y) + r * (float) Math.sin(theta) + outwardY * radial);
+
+        writer.sinusoidalXMotion(
+                random.nextFloat(minSinXAmplitude, maxSinXAmplitude),
+                random.nextFloat(minSinXFrequency, maxSinXFrequency),
+                random.nextFloat(minSinXPhase, maxSinXPhase));
+        writer.sinusoidalYMotion(
+                random.nextFloat(minSinYAmplitude, maxSinYAmplitude),
+                random.nextFloat(minSinYFrequency, maxSinYFrequency),
+                random.nextFloat(minSinYPhase, maxSinYPhase));
+
+        writer.facing(random.nextFloat(minTheta, maxTheta))
+                .turnRate(random.nextFloat(minW, maxW))
+                .turnAcceleration(random.nextFloat(minAlpha, maxAlpha))
+                .revolutionRate(random.nextFloat(minRadialW, maxRadialW))
+                .revolutionAcceleration(random.nextFloat(minRadialAlpha, maxRadialAlpha));
+
+        float sizeX = random.nextFloat(minSizeDataX[0], maxSizeDataX[0]);
+        float growthX = random.nextFloat(minSizeDataX[1], maxSizeDataX[1]);
+        float growthAccX = random.nextFloat(minSizeDataX[2], maxSizeDataX[2]);
+        if (syncSize) {
+            writer.size(sizeX, sizeX).growthRate(growthX, growthX).growthAcceleration(growthAccX, growthAccX);
+        } else {
+            writer.size(sizeX, random.nextFloat(minSizeDataY[0], maxSizeDataY[0]))
+                    .growthRate(growthX, random.nextFloat(minSizeDataY[1], maxSizeDataY[1]))
+                    .growthAcceleration(growthAccX, random.nextFloat(minSizeDataY[2], maxSizeDataY[2]));
         }
-        data.size(newSizeDataX[0], newSizeDataY[0]);
-        data.growthRate(newSizeDataX[1], newSizeDataY[1]);
-        data.growthAcceleration(newSizeDataX[2], newSizeDataY[2]);
 
-        float[] newStartColor = new float[4];
-        for (int j = 0; j < 4; j++) {
-            newStartColor[j] = startColor[j] + Utils.randBetween(-startColorRandom[j]/2f, startColorRandom[j]/2f);
+        writer.colorHSVA(
+                startColor[0] + random.nextFloat(-startColorRandom[0]/2f, startColorRandom[0]/2f),
+                startColor[1] + random.nextFloat(-startColorRandom[1]/2f, startColorRandom[1]/2f),
+                startColor[2] + random.nextFloat(-startColorRandom[2]/2f, startColorRandom[2]/2f),
+                startColor[3] + random.nextFloat(-startColorRandom[3]/2f, startColorRandom[3]/2f));
+        writer.hueShift(random.nextFloat(minColorShift[0], maxColorShift[0]))
+                .saturationShift(random.nextFloat(minColorShift[1], maxColorShift[1]))
+                .colorValueShift(random.nextFloat(minColorShift[2], maxColorShift[2]))
+                .alphaShift(random.nextFloat(minColorShift[3], maxColorShift[3]));
+
+        writer.fadeTime(random.nextFloat(minFadeIn, maxFadeIn), random.nextFloat(minFadeOut, maxFadeOut))
+                .life(random.nextFloat(minLife, maxLife));
+    }
+
+    private static float randomAngle(ParticleRandom random) {
+        return random.nextFloat() * 2f * (float) Math.PI;
+    }
+
+    /** Radius of a uniformly random point in a ring, as in {@link Utils#randomPointInRing}. */
+    private static float randomRadiusInRing(ParticleRandom random, float inRadius, float outRadius) {
+        return (float) Math.sqrt(random.nextFloat() * (outRadius*outRadius - inRadius*inRadius) + inRadius*inRadius);
+    }
+
+    /** Whether a subclass overrides {@link #initParticle(int)}. */
+    private static final ClassValue<Boolean> overridesInitParticle = overridesBelowEmitter(int.class);
+    /** Whether a subclass overrides {@link #initParticle(int, ParticleWriter)}. */
+    private static final ClassValue<Boolean> overridesWriterInitParticle = overridesBelowEmitter(int.class, ParticleWriter.class);
+
+    private static ClassValue<Boolean> overridesBelowEmitter(Class<?>... parameterTypes) {
+        return new ClassValue<>() {
+            @Override
+            protected Boolean computeValue(Class<?> type) {
+                for (Class<?> c = type; c != Emitter.class; c = c.getSuperclass()) {
+                    try {
+                        c.getDeclaredMethod("initParticle", parameterTypes);
+                        return true;
+                    } catch (NoSuchMethodException ignored) {}
+                }
+                return false;
+            }
+        };
+    }
+
+    /** Thread-safe unless a subclass overrides {@link #initParticle}, in which case that subclass has to say so. */
+    @Override
+    protected boolean isThreadSafe() {
+        return canGenerateOnGpu();
+    }
+
+    /**
+     * Copies this emitter's fields into {@code previous} if it's an {@code Emitter}, or else into a new one. Subclasses
+     * aren't snapshotted unless they override this, since the copy would lose any overridden methods, e.g.
+     * {@link #getLocation()}.
+     */
+    @Override
+    protected IEmitter snapshot(IEmitter previous) {
+        if (getClass() != Emitter.class) return null;
+        if (previous instanceof Emitter copy) {
+            copy.copyFrom(this);
+            return copy;
         }
-        data.colorHSVA(newStartColor);
+        return new Emitter(this);
+    }
 
-        float[] newColorShift = new float[4];
-        for (int j = 0; j < 4; j++) {
-            newColorShift[j] = Utils.randBetween(minColorShift[j], maxColorShift[j]);
+    /**
+     * @return Whether this emitter's particles can be generated on the GPU instead of with {@link #initParticle},
+     * i.e. whether neither version of {@link #initParticle} is overridden.
+     */
+    final boolean canGenerateOnGpu() {
+        return !overridesInitParticle.get(getClass()) && !overridesWriterInitParticle.get(getClass());
+    }
+
+    /** @return Whether no particle's hue or saturation can change, so every particle's color is stored as RGB. */
+    final boolean generatesRGB() {
+        return minColorShift[0] == 0f && maxColorShift[0] == 0f && minColorShift[1] == 0f && maxColorShift[1] == 0f;
+    }
+
+    /** @return Bitmask of every {@link ParticleShader} feature that a particle from {@link #initParticle} could use. */
+    final int possibleFeatures() {
+        int features = 0;
+        if (minSinXAmplitude != 0f || maxSinXAmplitude != 0f || minSinYAmplitude != 0f || maxSinYAmplitude != 0f) {
+            features |= ParticleShader.SINUSOID;
+        }
+        if (minRadialW != 0f || maxRadialW != 0f || minRadialAlpha != 0f || maxRadialAlpha != 0f) {
+            features |= ParticleShader.REVOLUTION;
         }
-        data.hueShift(newColorShift[0]).saturationShift(newColorShift[1]).colorValueShift(newColorShift[2]).alphaShift(newColorShift[3]);
+        for (int j = 1; j < 3; j++) {
+            if (minSizeDataX[j] != 0f || maxSizeDataX[j] != 0f || minSizeDataY[j] != 0f || maxSizeDataY[j] != 0f) {
+                features |= ParticleShader.GROWTH;
+            }
+        }
+        if (!generatesRGB()) features |= ParticleShader.HSV;
+        return features;
+    }
+
+    /** @return Longest life any particle from {@link #initParticle} could have. */
+    final float maxParticleLife() {
+        return Math.max(minLife, maxLife);
+    }
 
-        float newFadeIn = Utils.randBetween(minFadeIn, maxFadeIn);
-        float newFadeOut = Utils.randBetween(minFadeOut, maxFadeOut);
-        float newLife = Utils.randBetween(minLife, maxLife);
-        data.fadeTime(newFadeIn, newFadeOut).life(newLife);
+    /**
+     * @return Upper bound on how far any part of any particle from {@link #initParticle} gets from the emitter's
+     * location, following the same reasoning as {@link ParticleWriter#maxDistanceFromEmitter()}.
+     */
+    final float maxParticleDistance() {
+        float t = maxParticleLife(), halfTSq = 0.5f * t * t;
+        float offset = (float) Math.hypot(maxAbs(minOffset.x, maxOffset.x), maxAbs(minOffset.y, maxOffset.y))
+                + maxAbs(minPositionSpread, maxPositionSpread);
+        float velocity = (float) Math.hypot(maxAbs(minVelocity.x, maxVelocity.x), maxAbs(minVelocity.y, maxVelocity.y))
+                + maxAbs(minVelocitySpread, maxVelocitySpread) + maxAbs(minRadialVelocity, maxRadialVelocity);
+        float acceleration = (float) Math.hypot(maxAbs(minAcceleration.x, maxAcceleration.x), maxAbs(minAcceleration.y, maxAcceleration.y))
+                + maxAbs(minAccelerationSpread, maxAccelerationSpread) + maxAbs(minRadialAcceleration, maxRadialAcceleration);
+        float sinusoid = 2f * (maxAbs(minSinXAmplitude, maxSinXAmplitude) + maxAbs(minSinYAmplitude, maxSinYAmplitude));
+        float[] maxSize = new float[2];
+        for (int axis = 0; axis < 2; axis++) {
+            float[] min = axis == 0 ? minSizeDataX : minSizeDataY, max = axis == 0 ? maxSizeDataX : maxSizeDataY;
+            maxSize[axis] = maxAbs(min[0], max[0]) + maxAbs(min[1], max[1]) * t + maxAbs(min[2], max[2]) * halfTSq;
+        }
+        if (syncSize) {
+            maxSize[1] = maxSize[0];
+        }
+        return offset + velocity * t + acceleration * halfTSq + sinusoid + (float) Math.hypot(maxSize[0], maxSize[1]);
+    }
 
-        return data;
+    private static float maxAbs(float a, float b) {
+        return Math.max(Math.abs(a), Math.abs(b));
     }
 
     /**
@@ -1,98 +1,172 @@
 package particleengine;
 
 import com.fs.starfarer.api.util.Misc;
-import org.lwjgl.BufferUtils;
-import org.lwjgl.opengl.GL15;
-import org.lwjgl.opengl.GL30;
-import org.lwjgl.opengl.GL43;
 import org.lwjgl.util.vector.Vector2f;
 
-import java.nio.FloatBuffer;
-import java.util.*;
+import java.util.Arrays;
 
+/**
+ * Assigns dynamically anchored emitters slots in the tracked emitter SSBO. Free slots are tracked in a bitset, and
+ * the lowest free slot is always used so that only a short prefix of the buffer needs uploading. Filled slots are
+ * also kept in a doubly linked list from least to most recently used, so that when the buffer can't grow any more
+ * the stalest emitter can be evicted without searching for it. Everything is stored in primitive arrays. <br>
+ * The buffer starts small, doubles whenever it runs out of slots, and halves once its filled prefix fits in a
+ * quarter of it.
+ */
 class EmitterBufferHandler {
 
-    /**  Specified in the number of emitters, each of which is 16 bytes. */
-    static final int MAX_BUFFER_SIZE = 10000;
-
-    /** Fraction of most stale emitters to remove when the buffer is full. */
-    static final float REMOVE_WHEN_FULL_FRAC = 0.5f;
-    final PriorityQueue<Integer> freePositions = new PriorityQueue<>();
-    final SortedSet<Integer> filledPositions = new TreeSet<>(Collections.reverseOrder());
-    final IEmitter[] trackedEmitters = new IEmitter[MAX_BUFFER_SIZE];
-    static final int ssboBufferIndex;
-    static final FloatBuffer emitterLocations;
-
-    static {
-        ssboBufferIndex = GL15.glGenBuffers();
-        GL15.glBindBuffer(GL43.GL_SHADER_STORAGE_BUFFER, ssboBufferIndex);
-        emitterLocations = BufferUtils.createFloatBuffer(4*MAX_BUFFER_SIZE);
-        GL15.glBufferData(GL43.GL_SHADER_STORAGE_BUFFER, emitterLocations, GL15.GL_DYNAMIC_DRAW);
-        GL30.glBindBufferBase(GL43.GL_SHADER_STORAGE_BUFFER, ParticleShader.trackedEmitterBinding, ssboBufferIndex);
-        GL15.glBindBuffer(GL43.GL_SHADER_STORAGE_BUFFER, 0);
-    }
-
-    EmitterBufferHandler() {
-        for (int i = 0; i < MAX_BUFFER_SIZE; i++) {
-            freePositions.add(i);
-        }
-    }
+    /** In number of emitters, each of which is {@value TrackedEmitterStorage#ELEMENT_SIZE} bytes. */
+    static final int INITIAL_CAPACITY = 256;
+    /** 16 MiB, the smallest {@code GL_MAX_SHADER_STORAGE_BLOCK_SIZE} allowed by OpenGL 4.3. */
+    static final int MAX_CAPACITY = 1 << 20;
+    private static final int NONE = -1;
+
+    private int capacity = INITIAL_CAPACITY;
+    /** Bit {@code i % 64} of word {@code i / 64} is set if slot {@code i} is filled. */
+    private long[] filled = new long[capacity >>> 6];
+    /** Every word of {@link #filled} before this one is full. */
+    private int firstFreeWord = 0;
+    private int highestFilled = NONE;
+    /** Links of the least-recently-used list of filled slots; only meaningful for filled slots. */
+    private int[] previous = new int[capacity], next = new int[capacity];
+    /** Least and most recently used filled slots. */
+    private int oldest = NONE, newest = NONE;
+    private IEmitter[] trackedEmitters = new IEmitter[capacity];
+    /** Location, facing, and smoothing flag of the emitter in each slot, as in {@code TrackedEmitterData}. */
+    private final TrackedEmitterStorage storage = new TrackedEmitterStorage(INITIAL_CAPACITY);
 
     void updateTrackedEmitters(float currentCampaignTime, float currentCombatTime) {
-        for (Iterator<Integer> iterator = filledPositions.iterator(); iterator.hasNext(); ) {
-            int i = iterator.next();
-            IEmitter emitter = trackedEmitters[i];
-            Vector2f emitterLocation = emitter.getLocation();
-            emitterLocations.put(4 * i, emitterLocation.x);
-            emitterLocations.put(4 * i + 1, emitterLocation.y);
-            emitterLocations.put(4 * i + 2, emitter.getXDir() * Misc.RAD_PER_DEG);
-            emitterLocations.put(4 * i + 3, emitter.isSmoothDynamic() ? 1f : 0f);
-
-            // Check if the emitter is dead
-            if (emitter.lastCampaignParticleDeathTime < currentCampaignTime &&
-                    (emitter.lastCombatParticleDeathTime < currentCombatTime || !Particles.isCombat())) {
-                emitter.untrack();
-                freePositions.add(i);
-                iterator.remove();
-                trackedEmitters[i] = null;
+        int lastWord = highestFilled >> 6;
+        for (int word = 0; word <= lastWord; word++) {
+            for (long bits = filled[word]; bits != 0; bits &= bits - 1) {
+                int i = (word << 6) + Long.numberOfTrailingZeros(bits);
+                IEmitter emitter = trackedEmitters[i];
+                Vector2f emitterLocation = emitter.getLocation();
+                storage.set(i, emitterLocation.x, emitterLocation.y, emitter.getXDir() * Misc.RAD_PER_DEG, emitter.isSmoothDynamic() ? 1f : 0f);
+
+                // Check if the emitter is dead
+                if (emitter.lastCampaignParticleDeathTime < currentCampaignTime &&
+                        (emitter.lastCombatParticleDeathTime < currentCombatTime || !Particles.isCombat())) {
+                    emitter.untrack();
+                    release(i);
+                }
             }
         }
+        if (capacity > INITIAL_CAPACITY && highestFilled < capacity / 4) {
+            resize(capacity / 2);
+        }
+    }
+
+    /** Sends the emitters that moved this frame to the GPU. Called once per frame, after {@link #updateTrackedEmitters}. */
+    void upload() {
+        storage.upload();
+    }
+
+    /** Binds the emitter data to {@link ParticleShader#trackedEmitterBinding}. */
+    void bind() {
+        storage.bind();
+    }
+
+    void delete() {
+        storage.delete();
     }
 
     int trackEmitter(IEmitter emitter) {
-        if (freePositions.isEmpty()) {
-            // No free slots are available, we have to remove some emitters
-            // Sort by staleness -- last particle death time
-            List<Integer> sortedFilledPositions = new ArrayList<>(filledPositions);
-            sortedFilledPositions.sort((a, b) -> Float.compare(
-                    trackedEmitters[a].getLastParticleDeathTime(),
-                    trackedEmitters[b].getLastParticleDeathTime()));
-
-            int numToRemove = (int) Math.ceil(REMOVE_WHEN_FULL_FRAC *  sortedFilledPositions.size());
-            for (int i = 0; i < numToRemove; i++) {
-                int j = sortedFilledPositions.get(i);
-                filledPositions.remove(j);
-                freePositions.add(j);
-            }
+        int index = lowestFreeSlot();
+        if (index == NONE && capacity < MAX_CAPACITY) {
+            index = capacity;
+            resize(2 * capacity);
+        } else if (index == NONE) {
+            // No free slots are available, so evict the emitter that least recently generated a burst
+            index = oldest;
+            trackedEmitters[index].untrack();
+            release(index);
         }
 
-        int index = freePositions.remove();
-        filledPositions.add(index);
+        filled[index >> 6] |= 1L << index;
+        highestFilled = Math.max(highestFilled, index);
         trackedEmitters[index] = emitter;
+        linkNewest(index);
 
         return index;
     }
 
-    int getHighestFilledPosition() {
-        if (filledPositions.isEmpty()) return -1;
-        return filledPositions.iterator().next();
+    /** Resizes every per-slot array and the storage buffer. Slots past {@code newCapacity} must be free. */
+    private void resize(int newCapacity) {
+        filled = Arrays.copyOf(filled, newCapacity >>> 6);
+        firstFreeWord = Math.min(firstFreeWord, filled.length);
+        previous = Arrays.copyOf(previous, newCapacity);
+        next = Arrays.copyOf(next, newCapacity);
+        trackedEmitters = Arrays.copyOf(trackedEmitters, newCapacity);
+        storage.resize(newCapacity);
+        capacity = newCapacity;
+    }
+
+    /**
+     * Marks {@code emitter}, which says it's in slot {@code index}, as the most recently used, so that it's evicted
+     * last.
+     *
+     * @return {@code false} if {@code emitter} isn't actually in that slot, and needs to be tracked again.
+     */
+    boolean touch(IEmitter emitter, int index) {
+        if (index < 0 || index >= capacity || trackedEmitters[index] != emitter) return false;
+        if (index != newest) {
+            unlink(index);
+            linkNewest(index);
+        }
+        return true;
     }
 
-    int getSSBOBufferIndex() {
-        return ssboBufferIndex;
+    /** @return The lowest free slot, or {@link #NONE} if every slot is filled. */
+    private int lowestFreeSlot() {
+        for (; firstFreeWord < filled.length; firstFreeWord++) {
+            long free = ~filled[firstFreeWord];
+            if (free != 0) {
+                return (firstFreeWord << 6) + Long.numberOfTrailingZeros(free);
+            }
+        }
+        return NONE;
     }
 
-    FloatBuffer locationsToFloatBuffer() {
-        return emitterLocations;
+    private void release(int index) {
+        int word = index >> 6;
+        filled[word] &= ~(1L << index);
+        firstFreeWord = Math.min(firstFreeWord, word);
+        trackedEmitters[index] = null;
+        unlink(index);
+        if (index == highestFilled) {
+            highestFilled = NONE;
+            for (; word >= 0; word--) {
+                if (filled[word] != 0) {
+                    highestFilled = (word << 6) + 63 - Long.numberOfLeadingZeros(filled[word]);
+                    break;
+                }
+            }
+        }
+    }
+
+    private void linkNewest(int index) {
+        previous[index] = newest;
+        next[index] = NONE;
+        if (newest == NONE) {
+            oldest = index;
+        } else {
+            next[newest] = index;
+        }
+        newest = index;
+    }
+
+    private void unlink(int index) {
+        int before = previous[index], after = next[index];
+        if (before == NONE) {
+            oldest = after;
+        } else {
+            next[before] = after;
+        }
+        if (after == NONE) {
+            newest = before;
+        } else {
+            previous[after] = before;
+        }
     }
 }
@@ -0,0 +1,90 @@
+package particleengine;
+
+import org.lwjgl.BufferUtils;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Direct buffer that particle data is staged in between generation and upload. Space is handed out by bumping an
+ * offset and is all reclaimed at once by {@link #reset()}, once everything staged in it has been uploaded, so
+ * generating particles doesn't allocate a new direct buffer per burst. <br>
+ * The arena grows by doubling, keeping its contents, up to {@value MAX_SIZE} bytes. Requests that would take it past
+ * that are refused, and the caller should stage the burst in a buffer of its own instead.
+ */
+class FrameArena {
+    /** In bytes. */
+    private static final int INITIAL_SIZE = 1 << 18, MAX_SIZE = 1 << 24;
+
+    private ByteBuffer buffer = BufferUtils.createByteBuffer(INITIAL_SIZE);
+    /** Offset of the first byte that hasn't been handed out. */
+    private int position = 0;
+    /**
+     * {@link UploadRing} position of the oldest ring reservation made by a burst staged for this arena's game state
+     * since the last {@link #reset()}, or {@link Long#MAX_VALUE} if there is none. The ring isn't released past it.
+     */
+    private long oldestRingReservation = Long.MAX_VALUE;
+
+    /**
+     * Reserves {@code numBytes} bytes. Growing replaces the underlying buffer, so callers should get
+     * {@link #buffer()} after reserving, not before.
+     *
+     * @return Offset of the reserved bytes in {@link #buffer()}, or {@code -1} if they don't fit.
+     */
+    int reserve(int numBytes) {
+        if (numBytes > MAX_SIZE - position) {
+            return -1;
+        }
+        if (position + numBytes > buffer.capacity()) {
+            int newCapacity = buffer.capacity();
+            while (newCapacity < position + numBytes) {
+                newCapacity *= 2;
+            }
+            ByteBuffer newBuffer = BufferUtils.createByteBuffer(Math.min(newCapacity, MAX_SIZE));
+            buffer.clear().limit(position);
+            newBuffer.put(buffer);
+            newBuffer.clear();
+            buffer = newBuffer;
+        }
+        int offset = position;
+        position += numBytes;
+        return offset;
+    }
+
+    /**
+     * @return A native-order buffer with {@code numBytes} bytes remaining, from the arena if it fits or a new
+     * buffer if not. Only valid until the next {@link #reset()}.
+     */
+    ByteBuffer allocate(int numBytes) {
+        int offset = reserve(numBytes);
+        return offset < 0 ? BufferUtils.createByteBuffer(numBytes) : slice(offset, numBytes);
+    }
+
+    /** @return A native-order view of bytes {@code [offset, offset + numBytes)} of {@link #buffer()}. */
+    ByteBuffer slice(int offset, int numBytes) {
+        return buffer.duplicate().limit(offset + numBytes).position(offset).slice().order(ByteOrder.nativeOrder());
+    }
+
+    /**
+     * @return The arena's current backing buffer. Stays valid, with everything reserved in it so far, even after
+     * the arena grows.
+     */
+    ByteBuffer buffer() {
+        return buffer;
+    }
+
+    /** Records that a burst staged for this arena's game state reserved ring space at or after {@code ringPosition}. */
+    void holdRing(long ringPosition) {
+        oldestRingReservation = Math.min(oldestRingReservation, ringPosition);
+    }
+
+    long oldestRingReservation() {
+        return oldestRingReservation;
+    }
+
+    /** Reclaims everything handed out so far, and releases the hold on the ring. */
+    void reset() {
+        position = 0;
+        oldestRingReservation = Long.MAX_VALUE;
+    }
+}
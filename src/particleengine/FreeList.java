@@ -0,0 +1,88 @@
+package particleengine;
+
+import java.util.*;
+
+/**
+ * Best-fit free list of the holes left behind by dead clusters in a {@link ParticleArena}'s chunks.
+ * Adjacent holes are coalesced; holes at the tail of a chunk are not tracked, since the chunk just shrinks instead.
+ */
+class FreeList {
+    /** {@code size} particles starting at {@code location} in {@code chunk}. */
+    record FreeRange(ParticleChunk chunk, int location, int size) {}
+
+    private static final Comparator<FreeRange> bestFitOrder = Comparator
+            .comparingInt(FreeRange::size)
+            .thenComparingInt(range -> range.chunk == null ? Integer.MIN_VALUE : range.chunk.id)
+            .thenComparingInt(FreeRange::location);
+
+    private final TreeSet<FreeRange> bySize = new TreeSet<>(bestFitOrder);
+    private final Map<ParticleChunk, TreeMap<Integer, FreeRange>> byLocation = new HashMap<>();
+
+    /** Marks {@code size} particles starting at {@code location} in {@code chunk} as free. */
+    void add(ParticleChunk chunk, int location, int size) {
+        TreeMap<Integer, FreeRange> chunkRanges = byLocation.get(chunk);
+        if (chunkRanges != null) {
+            var before = chunkRanges.floorEntry(location);
+            FreeRange after = chunkRanges.get(location + size);
+            if (before != null && before.getValue().location + before.getValue().size == location) {
+                remove(before.getValue());
+                location = before.getValue().location;
+                size += before.getValue().size;
+            }
+            if (after != null) {
+                remove(after);
+                size += after.size;
+            }
+        }
+        FreeRange range = new FreeRange(chunk, location, size);
+        bySize.add(range);
+        byLocation.computeIfAbsent(chunk, k -> new TreeMap<>()).put(location, range);
+    }
+
+    /**
+     * Takes the smallest hole that fits {@code count} particles, returning what's left of it to the free list.
+     *
+     * @return The reserved range, or {@code null} if no hole is big enough.
+     */
+    FreeRange take(int count) {
+        FreeRange range = bySize.ceiling(new FreeRange(null, Integer.MIN_VALUE, count));
+        if (range == null) return null;
+        remove(range);
+        if (range.size > count) {
+            add(range.chunk, range.location + count, range.size - count);
+        }
+        return new FreeRange(range.chunk, range.location, count);
+    }
+
+    /** Forgets every hole in {@code chunk} at or past {@code position}. */
+    void truncate(ParticleChunk chunk, int position) {
+        TreeMap<Integer, FreeRange> chunkRanges = byLocation.get(chunk);
+        if (chunkRanges == null) return;
+        List<FreeRange> dropped = new ArrayList<>(chunkRanges.tailMap(position).values());
+        var last = chunkRanges.lowerEntry(position);
+        FreeRange clipped = last != null && last.getValue().location + last.getValue().size > position ? last.getValue() : null;
+        for (FreeRange range : dropped) {
+            remove(range);
+        }
+        if (clipped != null) {
+            remove(clipped);
+            add(chunk, clipped.location, position - clipped.location);
+        }
+    }
+
+    /** Forgets every hole in {@code chunk}. */
+    void clear(ParticleChunk chunk) {
+        TreeMap<Integer, FreeRange> chunkRanges = byLocation.remove(chunk);
+        if (chunkRanges == null) return;
+        bySize.removeAll(chunkRanges.values());
+    }
+
+    private void remove(FreeRange range) {
+        bySize.remove(range);
+        TreeMap<Integer, FreeRange> chunkRanges = byLocation.get(range.chunk);
+        chunkRanges.remove(range.location);
+        if (chunkRanges.isEmpty()) {
+            byLocation.remove(range.chunk);
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package particleengine;
+
+import org.lwjgl.opengl.*;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Generates bursts of the default {@link Emitter} on the GPU. Instead of running {@link Emitter#initParticle} for
+ * every particle, the CPU writes the emitter's parameters into a small block with {@link #writeParameters}, and
+ * generate.comp samples each particle from those parameters with a hash-based RNG, writing the particle records
+ * straight into the destination vertex buffer. Only used when {@link ParticleEngineModPlugin#gpuEmitterGeneration} is
+ * set.
+ */
+class GpuParticleGenerator {
+    /** Bursts smaller than this are cheaper to generate on the CPU than to dispatch. */
+    static final int MIN_BURST_SIZE = 256;
+    /** Must match generate.comp. */
+    private static final int WORK_GROUP_SIZE = 64;
+    /** Number of 4-byte words in a parameter block. Must match generate.comp. */
+    private static final int PARAM_WORDS = 83;
+    static final int PARAM_BYTES = PARAM_WORDS * 4;
+    private static final int INITIAL_JOBS = 16;
+    private static final int recordsBinding = 7, paramsBinding = 8;
+
+    private final int programId;
+    private final int jobLoc, firstParticleLoc, countLoc, outputWordLoc;
+    private final StorageBuffer params = new StorageBuffer(paramsBinding, PARAM_BYTES, INITIAL_JOBS);
+    /** In bytes. Storage buffer bindings have to start at a multiple of this. */
+    private final int offsetAlignment;
+    /** Number of parameter blocks used since the last {@link #finishFrame()}. */
+    private int numJobs = 0;
+
+    GpuParticleGenerator() {
+        programId = Shader.createComputeProgram("generate.comp", "");
+        jobLoc = GL20.glGetUniformLocation(programId, "job");
+        firstParticleLoc = GL20.glGetUniformLocation(programId, "firstParticle");
+        countLoc = GL20.glGetUniformLocation(programId, "count");
+        outputWordLoc = GL20.glGetUniformLocation(programId, "outputWord");
+        offsetAlignment = GL11.glGetInteger(GL43.GL_SHADER_STORAGE_BUFFER_OFFSET_ALIGNMENT);
+    }
+
+    /**
+     * Writes {@code e}'s current parameters to the next {@link #PARAM_BYTES} bytes of {@code buffer}. Ranges are
+     * written as adjacent (min, max) pairs, in the order generate.comp reads them.
+     *
+     * @param isRGB Whether the particles' hue and saturation never change, see {@link Emitter#generatesRGB()}.
+     */
+    static void writeParameters(Emitter e, int burstId, float startTime, boolean isRGB, ByteBuffer buffer) {
+        buffer.putInt(e.getRandom().nextInt())
+                .putInt(burstId)
+                .putFloat(startTime)
+                .putFloat(e.syncSize ? 1f : 0f)
+                .putFloat(isRGB ? 1f : 0f);
+        putRange(buffer, e.minLife, e.maxLife);
+        putRange(buffer, e.minOffset.x, e.maxOffset.x);
+        putRange(buffer, e.minOffset.y, e.maxOffset.y);
+        putRange(buffer, e.minPositionSpread, e.maxPositionSpread);
+        putRange(buffer, e.minVelocity.x, e.maxVelocity.x);
+        putRange(buffer, e.minVelocity.y, e.maxVelocity.y);
+        putRange(buffer, e.minVelocitySpread, e.maxVelocitySpread);
+        putRange(buffer, e.minRadialVelocity, e.maxRadialVelocity);
+        putRange(buffer, e.minAcceleration.x, e.maxAcceleration.x);
+        putRange(buffer, e.minAcceleration.y, e.maxAcceleration.y);
+        putRange(buffer, e.minAccelerationSpread, e.maxAccelerationSpread);
+        putRange(buffer, e.minRadialAcceleration, e.maxRadialAcceleration);
+        putRange(buffer, e.minSinXAmplitude, e.maxSinXAmplitude);
+        putRange(buffer, e.minSinXFrequency, e.maxSinXFrequency);
+        putRange(buffer, e.minSinXPhase, e.maxSinXPhase);
+        putRange(buffer, e.minSinYAmplitude, e.maxSinYAmplitude);
+        putRange(buffer, e.minSinYFrequency, e.maxSinYFrequency);
+        putRange(buffer, e.minSinYPhase, e.maxSinYPhase);
+        putRange(buffer, e.minTheta, e.maxTheta);
+        putRange(buffer, e.minW, e.maxW);
+        putRange(buffer, e.minAlpha, e.maxAlpha);
+        putRange(buffer, e.minRadialW, e.maxRadialW);
+        putRange(buffer, e.minRadialAlpha, e.maxRadialAlpha);
+        for (int j = 0; j < 3; j++) {
+            putRange(buffer, e.minSizeDataX[j], e.maxSizeDataX[j]);
+        }
+        for (int j = 0; j < 3; j++) {
+            putRange(buffer, e.minSizeDataY[j], e.maxSizeDataY[j]);
+        }
+        // Not a range, but the start color and its random spread
+        for (int j = 0; j < 4; j++) {
+            putRange(buffer, e.startColor[j], e.startColorRandom[j]);
+        }
+        for (int j = 0; j < 4; j++) {
+            putRange(buffer, e.minColorShift[j], e.maxColorShift[j]);
+        }
+        putRange(buffer, e.minFadeIn, e.maxFadeIn);
+        putRange(buffer, e.minFadeOut, e.maxFadeOut);
+    }
+
+    private static void putRange(ByteBuffer buffer, float min, float max) {
+        buffer.putFloat(min).putFloat(max);
+    }
+
+    /**
+     * Generates particles {@code [firstParticle, firstParticle + count)} of the burst whose parameters are the next
+     * {@link #PARAM_BYTES} bytes of {@code parameters}, writing them to particle {@code destination} of
+     * {@code buffer}.
+     */
+    void generate(ByteBuffer parameters, int firstParticle, int count, int buffer, int destination) {
+        int job = numJobs++;
+        params.ensureCapacity(numJobs);
+        ByteBuffer data = params.data();
+        data.position(job * PARAM_BYTES);
+        data.put(parameters.duplicate().limit(parameters.position() + PARAM_BYTES));
+        data.clear();
+        params.markDirty(job, 1);
+        params.upload();
+        params.bind();
+
+        long byteOffset = (long) destination * Particles.BYTES_PER_PARTICLE;
+        long boundOffset = byteOffset - byteOffset % offsetAlignment;
+        GL30.glBindBufferRange(
+                GL43.GL_SHADER_STORAGE_BUFFER,
+                recordsBinding,
+                buffer,
+                boundOffset,
+                byteOffset - boundOffset + (long) count * Particles.BYTES_PER_PARTICLE);
+
+        GL20.glUseProgram(programId);
+        GL20.glUniform1i(jobLoc, job);
+        GL20.glUniform1i(firstParticleLoc, firstParticle);
+        GL20.glUniform1i(countLoc, count);
+        GL20.glUniform1i(outputWordLoc, (int) (byteOffset - boundOffset) / 4);
+        GL43.glDispatchCompute((count + WORK_GROUP_SIZE - 1) / WORK_GROUP_SIZE, 1, 1);
+        // Later in the same flush, the particles may already be copied by a chunk compaction or a shared buffer growth
+        GL42.glMemoryBarrier(GL42.GL_VERTEX_ATTRIB_ARRAY_BARRIER_BIT
+                | GL42.GL_BUFFER_UPDATE_BARRIER_BIT
+                | GL43.GL_SHADER_STORAGE_BARRIER_BIT);
+    }
+
+    /** Resets the parameter blocks and GL state. Should be called once all of a frame's bursts are flushed. */
+    void finishFrame() {
+        if (numJobs == 0) return;
+        GL30.glBindBufferBase(GL43.GL_SHADER_STORAGE_BUFFER, recordsBinding, 0);
+        GL20.glUseProgram(0);
+        numJobs = 0;
+    }
+}
@@ -5,12 +5,14 @@ import com.fs.starfarer.api.campaign.listeners.CurrentLocationChangedListener;
 import com.fs.starfarer.api.combat.CombatEngineLayers;
 import com.fs.starfarer.api.combat.ViewportAPI;
 import com.fs.starfarer.api.graphics.SpriteAPI;
+import com.fs.starfarer.api.util.Misc;
 import com.fs.starfarer.api.util.Pair;
 import org.jetbrains.annotations.Nullable;
 import org.lwjgl.BufferUtils;
 import org.lwjgl.util.vector.Vector2f;
 
-import java.nio.FloatBuffer;
+import java.nio.ByteBuffer;
+import java.util.function.IntFunction;
 
 /** Emitter interface. Extend to make custom particle emitters.*/
 public abstract class IEmitter {
@@ -19,6 +21,24 @@ public abstract class IEmitter {
     protected boolean isSmoothDynamic = false;
     protected float lastCombatParticleDeathTime = 0f;
     protected float lastCampaignParticleDeathTime = 0f;
+    /** Bitmask of the {@link ParticleShader} features used by the particles from the last call to {@link #generate}. */
+    int generatedFeatures = 0;
+    /** Box that every particle from the last call to {@link #generate} stays inside for its whole life. */
+    Bounds generatedBounds = Bounds.UNBOUNDED;
+    /** Shared by every emitter, since particles are only generated on the main thread. */
+    private static final ParticleWriter writer = new ParticleWriter();
+    private ParticleRandom random;
+    /** Whether {@link #initParticle} is currently being called from {@link ParallelGenerator}'s worker threads. */
+    private boolean generatingInParallel = false;
+
+    protected IEmitter() {
+        this(new ParticleRandom());
+    }
+
+    /** For copies of other emitters, whose generators are overwritten anyway, so that no seed is drawn for them. */
+    IEmitter(ParticleRandom random) {
+        this.random = random;
+    }
 
     protected float getLastParticleDeathTime() {
         if (Particles.isCombat()) {
@@ -95,12 +115,71 @@ public abstract class IEmitter {
 
     /**
      * Construct parameters for a particle. Doesn't actually generate the particle. Use {@link Particles#burst}
-     * to generate particles from an emitter.
+     * to generate particles from an emitter. Not called if {@link #initParticle(int, ParticleWriter)} is overridden.
      *
      * @param id Index of the particle in the burst or stream
-     * @return Object containing the necessary data for particle generation
+     * @return Object containing the necessary data for particle generation, or {@code null} to skip the particle
      */
-    protected abstract ParticleData initParticle(int id);
+    protected ParticleData initParticle(int id) {
+        return null;
+    }
+
+    /**
+     * Allocation-free alternative to {@link #initParticle(int)}: sets the parameters for a particle directly on
+     * {@code writer}, whose properties all start at their defaults. {@code writer} is only valid for the duration
+     * of this call. The default implementation copies the result of {@link #initParticle(int)}.
+     *
+     * @param id Index of the particle in the burst or stream
+     * @param writer Cursor to set the particle's properties on
+     * @return Whether to generate the particle
+     */
+    protected boolean initParticle(int id, ParticleWriter writer) {
+        ParticleData data = initParticle(id);
+        if (data == null) {
+            return false;
+        }
+        data.writeTo(writer);
+        return true;
+    }
+
+    /**
+     * @return Whether {@link #initParticle} can be called from several threads at once, for different particles of
+     * the same burst. If so, large bursts are generated in parallel. {@link #preInitParticles} is always called on
+     * the main thread, before any particle in the burst is initialized. A thread-safe {@link #initParticle} should
+     * only read this emitter's state, and should only get random values from {@link #getRandom()}.
+     */
+    protected boolean isThreadSafe() {
+        return false;
+    }
+
+    /**
+     * Only used if {@link #isThreadSafe()}. If supported, lets particles from this emitter's streams be generated on a
+     * worker thread, from a copy of the emitter taken right after each burst's {@link #preInitParticles} call.
+     * Called for every such burst, so copies should be cheap to take.
+     *
+     * @param previous A copy this method returned earlier, whose burst has been generated, or {@code null}. Can be
+     *                 overwritten and returned again instead of making a new copy.
+     * @return A copy of this emitter whose {@link #initParticle} gives the same particles as this one's would right
+     * now, and that doesn't change when this one does. Or {@code null} if this emitter can't be copied, in which case
+     * its streams' particles are generated on the main thread.
+     */
+    protected IEmitter snapshot(@Nullable IEmitter previous) {
+        return null;
+    }
+
+    /**
+     * Calls {@link #snapshot(IEmitter)} and gives the copy this emitter's tracking state and random number
+     * generator state.
+     */
+    final IEmitter takeSnapshot(IEmitter previous) {
+        IEmitter copy = snapshot(previous);
+        if (copy == null) {
+            return null;
+        }
+        copy.indexInTracker = indexInTracker;
+        copy.random.copyFrom(random);
+        return copy;
+    }
 
     /**
      * Sets a flag that will allow particles generated by this emitter to dynamically follow its motion.
@@ -143,6 +222,24 @@ public abstract class IEmitter {
         return isSmoothDynamic;
     }
 
+    /**
+     * @return Random number generator to use in {@link #preInitParticles} and {@link #initParticle}. It's re-keyed
+     * before each particle, so each particle's random values only depend on the generator's seed, how many bursts
+     * this emitter has generated since then, and the particle's id.
+     */
+    public final ParticleRandom getRandom() {
+        return generatingInParallel ? ParallelGenerator.currentRandom() : random;
+    }
+
+    /**
+     * Seeds this emitter's random number generator, so that the bursts it generates from now on are the same every
+     * time, given the same emitter properties.
+     */
+    @SuppressWarnings("unused")
+    public final void setSeed(long seed) {
+        random.setSeed(seed);
+    }
+
     protected final int getIndexInTracker() {
         return indexInTracker;
     }
@@ -152,44 +249,108 @@ public abstract class IEmitter {
     }
 
     /**
-     * Prepare a {@link FloatBuffer} for particle generation.
+     * Prepare a {@link ByteBuffer} for particle generation.
      *
      * @param count Number of particles to generate
      * @param startIndex Starting index, which acts as a particle id that will be passed into {@link IEmitter#initParticle}
      * @param startTime Start of particles' life. Generally whatever the current time is when this method is called.
      * @param viewport Viewport object used to check if the emitter is in bounds
-     * @return A pair. The first item in the pair is the {@link FloatBuffer} containing data for every particle.
+     * @return A pair. The first item in the pair is the {@link ByteBuffer} containing packed data for every particle.
      *  The second item in the pair is the maximum life of all the particles in this generation sequence.
+     *  The buffer is taken from a per-frame arena, and is only valid until particles are next rendered.
      */
-    protected final Pair<FloatBuffer, Float> generate(int count, int startIndex, float startTime, ViewportAPI viewport, boolean isCombat) {
-        if (!Utils.isInViewport(getLocation(), viewport, getRenderRadius())) {
+    protected final Pair<ByteBuffer, Float> generate(int count, int startIndex, float startTime, ViewportAPI viewport, boolean isCombat) {
+        FrameArena arena = Particles.getFrameArena(isCombat);
+        return generate(count, startIndex, startTime, viewport, isCombat, arena == null ? BufferUtils::createByteBuffer : arena::allocate);
+    }
+
+    /**
+     * Same as {@link #generate(int, int, float, ViewportAPI, boolean)}, but writes particle data into the buffer
+     * returned by {@code bufferSupplier}, which is only called if particles are actually going to be generated.
+     *
+     * @param bufferSupplier Given a number of bytes, returns a native-order buffer with at least that many bytes remaining.
+     */
+    final Pair<ByteBuffer, Float> generate(int count, int startIndex, float startTime, ViewportAPI viewport, boolean isCombat, IntFunction<ByteBuffer> bufferSupplier) {
+        int burstId = beginBurst(count, startIndex, viewport);
+        if (burstId < 0) {
             return null;
         }
+        ByteBuffer buffer = bufferSupplier.apply(count * Particles.BYTES_PER_PARTICLE);
+        float maxLife = writeParticles(writer, buffer, count, startIndex, burstId, startTime, true);
+        endBurst(burstId, startTime, maxLife, isCombat);
+        buffer.flip();
+        return new Pair<>(buffer, maxLife);
+    }
+
+    /**
+     * Initializes particles {@code [startIndex, startIndex + count)} of burst {@code burstId} and writes them to
+     * {@code buffer} at its current position, advancing it past them. Also sets {@link #generatedFeatures} and
+     * {@link #generatedBounds}.
+     *
+     * @param allowParallel Whether the particles may be initialized by {@link ParallelGenerator}.
+     * @return The maximum life of the written particles.
+     */
+    final float writeParticles(ParticleWriter writer, ByteBuffer buffer, int count, int startIndex, int burstId, float startTime, boolean allowParallel) {
+        writer.begin(buffer, burstId, startTime);
+        if (allowParallel && count >= ParallelGenerator.MIN_BURST_SIZE && ParticleEngineModPlugin.parallelGeneration && isThreadSafe()) {
+            generatingInParallel = true;
+            try {
+                ParallelGenerator.generate(this, random, buffer, count, startIndex, burstId, startTime, writer);
+            } finally {
+                generatingInParallel = false;
+            }
+        } else {
+            for (int i = 0; i < count; i++) {
+                writer.reset();
+                random.beginParticle(startIndex + i);
+                if (initParticle(startIndex + i, writer)) {
+                    writer.commit();
+                }
+            }
+        }
+        generatedFeatures = writer.features | (indexInTracker >= 0 ? ParticleShader.TRACKED : 0);
+        // A tracked emitter can take its particles anywhere
+        generatedBounds = indexInTracker >= 0 ? Bounds.UNBOUNDED : Bounds.around(getLocation(), writer.maxDistance);
+        return writer.maxLife;
+    }
+
+    /**
+     * Checks whether a burst should be generated, starts tracking this emitter if needed, and records the emitter's
+     * current state in the {@link BurstTable}.
+     *
+     * @return The burst's id, or {@code -1} if the burst shouldn't be generated.
+     */
+    final int beginBurst(int count, int startIndex, ViewportAPI viewport) {
+        // Counted even if the burst is cancelled, so later bursts don't depend on where the camera was
+        random.beginBurst();
+        if (!Utils.isInViewport(getLocation(), viewport, getRenderRadius())) {
+            return -1;
+        }
         if (!preInitParticles(startIndex, count)) {
-            return null;
+            return -1;
         }
-        if (isDynamic && indexInTracker == -1) {
+        if (isDynamic) {
             EmitterBufferHandler bufferHandler = Particles.getTrackedEmitterHandler();
-            if (bufferHandler != null) {
+            if (bufferHandler != null && !bufferHandler.touch(this, indexInTracker)) {
                 indexInTracker = bufferHandler.trackEmitter(this);
             }
         }
-        FloatBuffer buffer = BufferUtils.createFloatBuffer(count * Particles.FLOATS_PER_PARTICLE);
-        float maxLife = 0f;
-        for (int i = 0; i < count; i++) {
-            ParticleData data = initParticle(startIndex + i);
-            if (data != null) {
-                maxLife = Math.max(maxLife, data.life);
-                data.addToFloatBuffer(this, startTime, buffer);
-            }
+        BurstTable bursts = Particles.getBurstTable();
+        SpriteArray.Entry spriteEntry = SpriteArray.forSprite(getSprite());
+        return bursts == null ? 0 : bursts.add(getLocation(), getXDir() * Misc.RAD_PER_DEG, indexInTracker, spriteEntry == null ? 0 : spriteEntry.index());
+    }
+
+    /** Frees the burst's id once its particles are dead, and updates this emitter's last particle death time. */
+    final void endBurst(int burstId, float startTime, float maxLife, boolean isCombat) {
+        BurstTable bursts = Particles.getBurstTable();
+        if (bursts != null) {
+            Particles.doAtTime(bursts, null, burstId, startTime + maxLife);
         }
         if (isCombat) {
             lastCombatParticleDeathTime = Math.max(lastCombatParticleDeathTime, startTime + maxLife);
         } else {
             lastCampaignParticleDeathTime = Math.max(lastCampaignParticleDeathTime, startTime + maxLife);
         }
-        buffer.flip();
-        return new Pair<>(buffer, maxLife);
     }
 
     /**
@@ -0,0 +1,100 @@
+package particleengine;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Generates large bursts from thread-safe emitters on the common {@link ForkJoinPool}. The burst is split into
+ * disjoint, fixed-size ranges of particle ids, and each range is written to its own range of the output buffer, so
+ * the particles end up exactly where serial generation would put them. Since {@link ParticleRandom} is re-keyed per
+ * particle, they also get the same values. <br>
+ * Only if some particles are skipped, i.e. {@link IEmitter#initParticle(int, ParticleWriter)} returns {@code false},
+ * do the ranges have to be moved together afterward.
+ */
+class ParallelGenerator {
+    /** Bursts with fewer particles than this are generated serially. */
+    static final int MIN_BURST_SIZE = 8192;
+    /** Number of particles each task generates. */
+    private static final int TASK_SIZE = 2048;
+
+    /** Each worker thread's writer and random number generator, reused across tasks. */
+    private static final ThreadLocal<ParticleWriter> workerWriter = ThreadLocal.withInitial(ParticleWriter::new);
+    private static final ThreadLocal<ParticleRandom> workerRandom = ThreadLocal.withInitial(ParticleRandom::new);
+
+    /** @return The random number generator of the task running on the current thread. */
+    static ParticleRandom currentRandom() {
+        return workerRandom.get();
+    }
+
+    /**
+     * Generates {@code count} particles from {@code emitter}, starting at id {@code startIndex}, into
+     * {@code buffer} at its current position, and advances the buffer past them. Statistics about the generated
+     * particles are accumulated into {@code result}, which should already have been {@link ParticleWriter#begin begun}.
+     */
+    static void generate(IEmitter emitter, ParticleRandom random, ByteBuffer buffer, int count, int startIndex, int burstId, float startTime, ParticleWriter result) {
+        int numTasks = (count + TASK_SIZE - 1) / TASK_SIZE;
+        int[] written = new int[numTasks];
+        int[] features = new int[numTasks];
+        float[] maxLife = new float[numTasks], maxDistance = new float[numTasks];
+        int base = buffer.position();
+
+        ForkJoinPool.commonPool().invoke(new RecursiveAction() {
+            @Override
+            protected void compute() {
+                generateTasks(0, numTasks);
+            }
+
+            private void generateTasks(int firstTask, int lastTask) {
+                if (lastTask - firstTask > 1) {
+                    int mid = (firstTask + lastTask) >>> 1;
+                    invokeAll(
+                            new RecursiveAction() {
+                                @Override
+                                protected void compute() {
+                                    generateTasks(firstTask, mid);
+                                }
+                            },
+                            new RecursiveAction() {
+                                @Override
+                                protected void compute() {
+                                    generateTasks(mid, lastTask);
+                                }
+                            });
+                    return;
+                }
+                int from = firstTask * TASK_SIZE, to = Math.min(count, from + TASK_SIZE);
+                ByteBuffer out = buffer.duplicate().order(ByteOrder.nativeOrder());
+                out.position(base + from * Particles.BYTES_PER_PARTICLE);
+                ParticleWriter writer = workerWriter.get();
+                ParticleRandom taskRandom = workerRandom.get();
+                taskRandom.copyFrom(random);
+                writer.begin(out, burstId, startTime);
+                for (int i = from; i < to; i++) {
+                    writer.reset();
+                    taskRandom.beginParticle(startIndex + i);
+                    if (emitter.initParticle(startIndex + i, writer)) {
+                        writer.commit();
+                    }
+                }
+                written[firstTask] = out.position() - base - from * Particles.BYTES_PER_PARTICLE;
+                features[firstTask] = writer.features;
+                maxLife[firstTask] = writer.maxLife;
+                maxDistance[firstTask] = writer.maxDistance;
+            }
+        });
+
+        int end = base;
+        for (int task = 0; task < numTasks; task++) {
+            int taskStart = base + task * TASK_SIZE * Particles.BYTES_PER_PARTICLE;
+            if (end != taskStart && written[task] > 0) {
+                // Some particles before this range were skipped
+                buffer.put(end, buffer, taskStart, written[task]);
+            }
+            end += written[task];
+            result.merge(features[task], maxLife[task], maxDistance[task]);
+        }
+        buffer.position(end);
+    }
+}
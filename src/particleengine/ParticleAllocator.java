@@ -4,233 +4,391 @@ import com.fs.starfarer.api.combat.ViewportAPI;
 import com.fs.starfarer.api.util.Pair;
 import org.apache.log4j.Logger;
 import org.lwjgl.BufferUtils;
-import org.lwjgl.opengl.*;
 
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
-import java.nio.FloatBuffer;
-import java.util.SortedSet;
-import java.util.TreeSet;
+import java.util.ArrayList;
+import java.util.List;
 
 class ParticleAllocator {
     static final Logger logger = Logger.getLogger(ParticleAllocator.class);
 
-    /** In number of floats. */
-    private static final int INITIAL_BUFFER_SIZE = 4096, MAX_BUFFER_SIZE = 2 << 29 - 1;
+    /** Maximum number of {@link ParticleChunk}s per allocator, across all arenas. Particles past this limit are dropped. */
+    private static final int MAX_CHUNKS = 256;
     /**
-     * If the fraction of live particles in {@code combinedBuffer} is less than this number,
-     * will reallocate the buffer.
+     * Shared by every allocator. {@code null} if persistently mapped uploads are disabled or unsupported, in which case
+     * particle data is uploaded with {@code glBufferSubData}.
      */
-    private static final float REFACTOR_FILL_FRACTION = 0.5f;
+    static final UploadRing uploadRing =
+            ParticleEngineModPlugin.persistentMappedUploads && UploadRing.isSupported() ? new UploadRing(UploadRing.DEFAULT_SIZE) : null;
+
+    /**
+     * Shared by every allocator. {@code null} unless {@link ParticleEngineModPlugin#sharedParticleBuffer} is set, in
+     * which case every chunk has its own vertex buffer.
+     */
+    static final SharedParticleBuffer sharedBuffer =
+            ParticleEngineModPlugin.sharedParticleBuffer ? new SharedParticleBuffer() : null;
+
+    /** Shared by every allocator. {@code null} unless {@link ParticleEngineModPlugin#gpuEmitterGeneration} is set. */
+    static final GpuParticleGenerator gpuGenerator =
+            ParticleEngineModPlugin.gpuEmitterGeneration ? new GpuParticleGenerator() : null;
+
+    /** Indexed by lifetime class, see {@link ParticleArena#forLifetime}. */
+    final ParticleArena[] arenas = new ParticleArena[ParticleArena.NUM_ARENAS];
+    /** Every live cluster in every arena, reclaimed by {@link #sweepDeadClusters} once its last particle dies. */
+    private final ClusterDeathQueue deathQueue = new ClusterDeathQueue();
+    private int particleCount = 0, chunkCount = 0;
     /**
-     * If an allocated cluster is compatible with the previous cluster in the buffer (that is, it dies earlier than the
-     * previous cluster's death time + {@code CLUSTER_DESTRUCTION_DELAY}), they will be merged.
-     * This will happen unless the previous cluster's size exceeds {@code MAX_COALESCE_SIZE},
-     * to avoid adversarial scenarios in which a single long-living particle gets merged with many short-lived particles,
-     * unnecessarily prolonging the life of all of those short-lived particles.
+     * Bitmask of every {@link ParticleShader} feature used by any particle this allocator has held, which decides the
+     * shader variant it's drawn with.
      */
-    private static final int MAX_COALESCE_SIZE = 512 * Particles.FLOATS_PER_PARTICLE;
+    int shaderFeatures = 0;
     /**
-     * Delay, in seconds, after the last particle in a cluster dies before that cluster is cleaned up.
+     * Where the burst currently being generated is staged: byte {@code stagingOffset} of {@code stagingData}, or of
+     * {@link #uploadRing} if {@code stagingData} is {@code null}.
      */
-    private static final float CLUSTER_DESTRUCTION_DELAY = 3f;
-
-    private int bufferSize = INITIAL_BUFFER_SIZE;
-    int bufferPosition = 0;
-    private final SortedSet<AllocatedClusterData> allocatedClusters = new TreeSet<>();
-    private AllocatedClusterData lastAllocated = null;
-    private int particleCount = 0;
-    protected final int vao, vbo;
+    private ByteBuffer stagingData;
+    private int stagingOffset;
+    /** Frame arena of the burst currently being generated. */
+    private FrameArena stagingArena;
+    /** Bursts generated since the last {@link #flush()}, in generation order. */
+    private final List<PendingBurst> pendingBursts = new ArrayList<>();
+    /** Next staged particle to upload during a {@link #flush()}, as a burst index and an offset into that burst. */
+    private int flushCursor, flushCursorOffset;
+    private boolean warnedFull = false;
     protected final ParticleType type;
 
+    /** What a staged burst's data is. */
+    private enum Source {
+        /** Particle data in a {@link FrameArena} or a buffer of its own. */
+        STAGING,
+        /** Particle data in {@link #uploadRing}. */
+        RING,
+        /** A {@link GpuParticleGenerator} parameter block; particles are generated when flushed. */
+        GPU
+    }
+
     /**
-     * Sets up an empty buffer with {@value INITIAL_BUFFER_SIZE} elements.
+     * {@code count} particles staged at byte {@code sourceOffset} of {@code data}, or of {@link #uploadRing} if
+     * {@code source} is {@link Source#RING}, to be placed in arena {@code arena}. Every particle in the burst stays
+     * inside {@code bounds}.
      */
+    private record PendingBurst(int arena, Source source, ByteBuffer data, int sourceOffset, int count, float generationTime, float deathTime, Bounds bounds) {}
+
     public ParticleAllocator(ParticleType type) {
         this.type = type;
-        vao = GL30.glGenVertexArrays();
-        GL30.glBindVertexArray(vao);
-
-        vbo = GL15.glGenBuffers();
-        GL15.glBindBuffer(GL15.GL_ARRAY_BUFFER, vbo);
-
-        int offset = 0;
-        for (int i = 0; i < Particles.VERTEX_ATTRIB_SIZES.length; i++) {
-            GL20.glEnableVertexAttribArray(i);
-            GL20.glVertexAttribPointer(i, Particles.VERTEX_ATTRIB_SIZES[i], GL11.GL_FLOAT, false, Particles.BYTES_PER_PARTICLE, offset);
-            GL33.glVertexAttribDivisor(i, 1);
-            offset += Particles.VERTEX_ATTRIB_SIZES[i] * Particles.FLOAT_SIZE;
+        for (int i = 0; i < arenas.length; i++) {
+            arenas[i] = new ParticleArena();
         }
-
-        FloatBuffer initialBuffer = BufferUtils.createFloatBuffer(INITIAL_BUFFER_SIZE);
-        GL15.glBufferData(GL15.GL_ARRAY_BUFFER, initialBuffer, GL15.GL_DYNAMIC_DRAW);
-
-        GL30.glBindVertexArray(0);
-        GL15.glBindBuffer(GL15.GL_ARRAY_BUFFER, 0);
     }
 
-    private void registerParticleCreation(final AllocatedClusterData clusterData) {
-        int count = clusterData.sizeInFloats / Particles.FLOATS_PER_PARTICLE;
-        particleCount += count;
-        // See if we can merge this cluster with the previously generated one
-        int mergedSize;
-        if (lastAllocated != null
-                && (mergedSize = lastAllocated.sizeInFloats + count*Particles.FLOATS_PER_PARTICLE) <= MAX_COALESCE_SIZE
-                && lastAllocated.deathTime + CLUSTER_DESTRUCTION_DELAY >= clusterData.deathTime
-                && lastAllocated.locationInBuffer + lastAllocated.sizeInFloats == clusterData.locationInBuffer) {
-            // This shouldn't be needed since generation time should always be current time,
-            // so lastAllocated 's generation time should always be smaller.
-            // But update the generation time just in case
-            lastAllocated.updateGenerationTime(Math.min(lastAllocated.generationTime, clusterData.generationTime));
-            lastAllocated.updateSize(mergedSize);
-        }
-        else {
-            allocatedClusters.add(clusterData);
-            lastAllocated = clusterData;
-            Particles.doLater(() ->
-                    registerParticleDeath(clusterData), clusterData.deathTime - clusterData.generationTime + CLUSTER_DESTRUCTION_DELAY);
+    /** Reclaims every cluster whose last particle has died by {@code currentTime}. Called once per frame. */
+    void sweepDeadClusters(float currentTime) {
+        while (!deathQueue.isEmpty() && deathQueue.peekDeathTime() <= currentTime) {
+            int arenaIndex = deathQueue.peekArena();
+            ParticleChunk.AllocatedClusterData clusterData = deathQueue.poll();
+            if (registerParticleDeath(arenas[arenaIndex], clusterData.chunk, clusterData)) {
+                // This allocator has been removed
+                return;
+            }
         }
     }
 
-    private void registerParticleDeath(AllocatedClusterData clusterData) {
-        allocatedClusters.remove(clusterData);
-        particleCount -= clusterData.sizeInFloats / Particles.FLOATS_PER_PARTICLE;
+    /** @return Whether this allocator ran out of particles and was removed. */
+    private boolean registerParticleDeath(ParticleArena arena, ParticleChunk chunk, ParticleChunk.AllocatedClusterData clusterData) {
+        int location = clusterData.getLocation(), size = clusterData.getSize();
+        boolean compacted = chunk.removeCluster(clusterData);
+        particleCount -= size;
         // Delete this allocator if there are no particles left
         if (particleCount <= 0) {
             Particles.removeType(type);
-            return;
+            return true;
         }
 
-        int particleCountInBuffer = bufferPosition / Particles.FLOATS_PER_PARTICLE;
-        if (particleCount < REFACTOR_FILL_FRACTION * particleCountInBuffer) {
-            reallocateBuffer();
+        // Free whole chunks once all of their clusters are dead
+        if (chunk.isEmpty()) {
+            arena.removeChunk(chunk);
+            chunkCount--;
+        } else if (compacted) {
+            arena.freeList.clear(chunk);
+        } else if (location + size > chunk.position) {
+            // Chunk was trimmed, anything past its new end is no longer a hole
+            arena.freeList.truncate(chunk, chunk.position);
+        } else {
+            arena.freeList.add(chunk, location, size);
         }
+        return false;
     }
 
-    private void reallocateBuffer() {
-        GL15.glBindBuffer(GL15.GL_ARRAY_BUFFER, vbo);
-
-        long numBytes = (long) bufferPosition * Particles.FLOAT_SIZE;
-        ByteBuffer buffer = GL30.glMapBufferRange(
-                GL15.GL_ARRAY_BUFFER,
-                0,
-                numBytes,
-                GL30.GL_MAP_READ_BIT | GL30.GL_MAP_WRITE_BIT,
-                null);
-        if (buffer == null) {
-            logger.error("Failed to map array buffer with error code: " + GL11.glGetError());
-            bufferPosition = 0;
-        }
-        else {
-            buffer.order(ByteOrder.nativeOrder());
-
-            FloatBuffer fb1 = buffer.asFloatBuffer();
-            FloatBuffer fb2 = fb1.duplicate();
-
-            fb2.position(0);
-            for (AllocatedClusterData clusterData : allocatedClusters) {
-                fb1.limit(clusterData.locationInBuffer + clusterData.sizeInFloats);
-                fb1.position(clusterData.locationInBuffer);
-                clusterData.updateLocation(fb2.position());
-                fb2.put(fb1);
-            }
-            bufferPosition = fb2.position();
+    /**
+     * Generates particles from {@code emitter} into a staging area. Staged bursts aren't visible until the next
+     * {@link #flush()}, which uploads them all at once.
+     */
+    void allocateParticles(IEmitter emitter, int count, int startIndex, float startTime, ViewportAPI viewport, boolean isCombat) {
+        if (gpuGenerator != null
+                && count >= GpuParticleGenerator.MIN_BURST_SIZE
+                && emitter instanceof Emitter defaultEmitter
+                && defaultEmitter.canGenerateOnGpu()) {
+            allocateOnGpu(defaultEmitter, count, startIndex, startTime, viewport, isCombat);
+            return;
+        }
+        stagingArena = Particles.getFrameArena(isCombat);
+        Pair<ByteBuffer, Float> bufferAndLife = emitter.generate(count, startIndex, startTime, viewport, isCombat, this::reserveStagingBuffer);
+        // If buffer data is null, that means the emitter was out of bounds and no particles should be generated
+        if (bufferAndLife == null) {
+            return;
         }
 
-        GL15.glUnmapBuffer(GL15.GL_ARRAY_BUFFER);
-        GL15.glBindBuffer(GL15.GL_ARRAY_BUFFER, 0);
+        int numGenerated = bufferAndLife.one.limit() / Particles.BYTES_PER_PARTICLE;
+        if (numGenerated <= 0) {
+            return;
+        }
+        shaderFeatures |= emitter.generatedFeatures;
+        addPendingBurst(new PendingBurst(
+                ParticleArena.forLifetime(bufferAndLife.two),
+                stagingData == null ? Source.RING : Source.STAGING,
+                stagingData,
+                stagingOffset,
+                numGenerated,
+                startTime,
+                startTime + bufferAndLife.two,
+                emitter.generatedBounds));
     }
 
-    void allocateParticles(IEmitter emitter, int count, int startIndex, float startTime, ViewportAPI viewport, boolean isCombat) {
-        Pair<FloatBuffer, Float> bufferAndLife = emitter.generate(count, startIndex, startTime, viewport, isCombat);
-        // If buffer data is null, that means the emitter was out of bounds and no particles should be generated
-        if (bufferAndLife == null) {
+    /**
+     * Stages a burst whose particles were already generated elsewhere, see {@link StreamPipeline}, by copying them
+     * into this allocator's staging area.
+     *
+     * @param particles Packed particle data, from its position to its limit.
+     */
+    void stageGenerated(ByteBuffer particles, float startTime, float maxLife, int features, Bounds bounds, boolean isCombat) {
+        int numGenerated = particles.remaining() / Particles.BYTES_PER_PARTICLE;
+        if (numGenerated <= 0) {
             return;
         }
+        stagingArena = Particles.getFrameArena(isCombat);
+        reserveStagingBuffer(particles.remaining()).put(particles);
+        shaderFeatures |= features;
+        addPendingBurst(new PendingBurst(
+                ParticleArena.forLifetime(maxLife),
+                stagingData == null ? Source.RING : Source.STAGING,
+                stagingData,
+                stagingOffset,
+                numGenerated,
+                startTime,
+                startTime + maxLife,
+                bounds));
+    }
 
-        FloatBuffer buffer = bufferAndLife.one;
+    /**
+     * Stages a burst from {@code emitter} as a parameter block for {@link #gpuGenerator}, which generates the
+     * particles straight into their chunk when the burst is flushed. Since individual particles aren't known until
+     * then, the burst's lifetime, features, and bounds are worked out from the emitter's parameter ranges.
+     */
+    private void allocateOnGpu(Emitter emitter, int count, int startIndex, float startTime, ViewportAPI viewport, boolean isCombat) {
+        int burstId = emitter.beginBurst(count, startIndex, viewport);
+        if (burstId < 0) {
+            return;
+        }
+        float maxLife = emitter.maxParticleLife();
+        boolean tracked = emitter.getIndexInTracker() >= 0;
+        stagingArena = Particles.getFrameArena(isCombat);
+        GpuParticleGenerator.writeParameters(
+                emitter,
+                burstId,
+                startTime,
+                emitter.generatesRGB(),
+                reserveLocalStaging(GpuParticleGenerator.PARAM_BYTES));
+        emitter.endBurst(burstId, startTime, maxLife, isCombat);
 
-        GL15.glBindBuffer(GL15.GL_ARRAY_BUFFER, vbo);
-        long requiredSize = bufferPosition + buffer.limit();
-        int allocatedLocation = bufferPosition;
-        // Current buffer is big enough to fit this emitter
-        if (requiredSize <= bufferSize) {
-            GL15.glBufferSubData(GL15.GL_ARRAY_BUFFER, (long) bufferPosition*Particles.FLOAT_SIZE, buffer);
+        shaderFeatures |= emitter.possibleFeatures() | (tracked ? ParticleShader.TRACKED : 0);
+        addPendingBurst(new PendingBurst(
+                ParticleArena.forLifetime(maxLife),
+                Source.GPU,
+                stagingData,
+                stagingOffset,
+                count,
+                startTime,
+                startTime + maxLife,
+                tracked ? Bounds.UNBOUNDED : Bounds.around(emitter.getLocation(), emitter.maxParticleDistance())));
+    }
+
+    private void addPendingBurst(PendingBurst burst) {
+        if (pendingBursts.isEmpty()) {
+            Particles.scheduleFlush(this);
         }
-        // Current buffer is too small, we must create a new buffer
-        else {
-            // Too many particles, can't allocate
-            if (bufferSize >= MAX_BUFFER_SIZE) {
-                GL15.glBindBuffer(GL15.GL_ARRAY_BUFFER, 0);
-                return;
+        pendingBursts.add(burst);
+        // Counted immediately so that the allocator isn't removed while it still has bursts waiting to be flushed
+        particleCount += burst.count;
+    }
+
+    /**
+     * Uploads every staged burst. Bursts in the same arena are placed as one range and registered as one cluster,
+     * and bursts whose staged data is contiguous are uploaded with a single copy.
+     */
+    void flush() {
+        if (pendingBursts.isEmpty()) return;
+        for (int i = 0; i < arenas.length; i++) {
+            flushArena(i);
+        }
+        pendingBursts.clear();
+    }
+
+    private void flushArena(int arenaIndex) {
+        ParticleArena arena = arenas[arenaIndex];
+        int remaining = 0;
+        float generationTime = Float.MAX_VALUE, deathTime = 0f;
+        Bounds bounds = null;
+        for (PendingBurst burst : pendingBursts) {
+            if (burst.arena != arenaIndex) continue;
+            remaining += burst.count;
+            generationTime = Math.min(generationTime, burst.generationTime);
+            deathTime = Math.max(deathTime, burst.deathTime);
+            bounds = bounds == null ? burst.bounds : bounds.union(burst.bounds);
+        }
+        if (remaining <= 0) return;
+
+        flushCursor = 0;
+        flushCursorOffset = 0;
+        // Split the staged particles across as many chunks as it takes to fit them
+        while (remaining > 0) {
+            // Prefer reusing the smallest dead hole that fits the rest of the particles
+            FreeList.FreeRange hole = arena.freeList.take(remaining);
+            if (hole != null) {
+                upload(arenaIndex, hole.chunk(), hole.location(), remaining, generationTime, deathTime, bounds);
+                break;
             }
 
-            int newSize = Utils.nearestBiggerPowerOfTwo(requiredSize, INITIAL_BUFFER_SIZE, MAX_BUFFER_SIZE);
-
-            FloatBuffer newBuffer = BufferUtils.createFloatBuffer(newSize);
-            if (bufferPosition > 0) {
-                ByteBuffer existingBuffer = GL30.glMapBufferRange(
-                        GL15.GL_ARRAY_BUFFER,
-                        0,
-                        (long) bufferPosition * Particles.FLOAT_SIZE,
-                        GL30.GL_MAP_READ_BIT | GL30.GL_MAP_WRITE_BIT,
-                        null);
-                if (existingBuffer == null) {
-                    logger.error("Failed to map array buffer with error code: " + GL11.glGetError());
-                }
-                else {
-                    existingBuffer.order(ByteOrder.nativeOrder());
-                    newBuffer.put(existingBuffer.asFloatBuffer());
+            ParticleChunk chunk = arena.lastChunk();
+            if (chunk == null || chunk.remaining() <= 0) {
+                if (chunkCount >= MAX_CHUNKS) {
+                    if (!warnedFull) {
+                        logger.warn(String.format("(Particle Engine) Particle limit reached for %s, dropping %s particles", type, remaining));
+                        warnedFull = true;
+                    }
+                    particleCount -= remaining;
+                    break;
                 }
-                GL15.glUnmapBuffer(GL15.GL_ARRAY_BUFFER);
+                chunk = new ParticleChunk(sharedBuffer);
+                arena.chunks.add(chunk);
+                chunkCount++;
             }
-            newBuffer.put(buffer);
-            // Store the whole buffer
-            newBuffer.position(0);
-            newBuffer.limit(newBuffer.capacity());
-            GL15.glBufferData(GL15.GL_ARRAY_BUFFER, newBuffer, GL15.GL_DYNAMIC_DRAW);
-            bufferSize = newSize;
-        }
-        bufferPosition = (int) requiredSize;
-        GL15.glBindBuffer(GL15.GL_ARRAY_BUFFER, 0);
-
-        AllocatedClusterData clusterData =
-                new AllocatedClusterData(
-                        allocatedLocation,
-                        count * Particles.FLOATS_PER_PARTICLE,
-                        startTime,
-                        startTime + bufferAndLife.two);
-        registerParticleCreation(clusterData);
-    }
 
-    int getVAO() {return vao;}
-    int getVBO() {return vbo;}
+            int pieceCount = Math.min(remaining, chunk.remaining());
+            int location = chunk.reserve(pieceCount);
+            upload(arenaIndex, chunk, location, pieceCount, generationTime, deathTime, bounds);
+            remaining -= pieceCount;
+        }
+    }
 
-    private static class AllocatedClusterData implements Comparable<AllocatedClusterData> {
-        private int locationInBuffer, sizeInFloats;
-        private float generationTime;
-        private final float deathTime;
+    /**
+     * Uploads the next {@code count} staged particles in arena {@code arenaIndex} to {@code location} in
+     * {@code chunk}, and registers them as a cluster that stays inside {@code bounds}.
+     */
+    private void upload(int arenaIndex, ParticleChunk chunk, int location, int count, float generationTime, float deathTime, Bounds bounds) {
+        // Run of contiguous staged particles that are yet to be copied
+        ByteBuffer runData = null;
+        int runStart = -1, runCount = 0, runDestination = location;
+        for (int copied = 0; copied < count; ) {
+            PendingBurst burst = pendingBursts.get(flushCursor);
+            if (burst.arena != arenaIndex) {
+                flushCursor++;
+                continue;
+            }
+            int n = Math.min(burst.count - flushCursorOffset, count - copied);
+            int source = burst.sourceOffset + flushCursorOffset * Particles.BYTES_PER_PARTICLE;
+            if (runCount > 0 && (burst.source == Source.GPU || burst.data != runData || source != runStart + runCount * Particles.BYTES_PER_PARTICLE)) {
+                copyRun(chunk, runDestination, runData, runStart, runCount);
+                runDestination += runCount;
+                runCount = 0;
+            }
+            if (burst.source == Source.GPU) {
+                burst.data.limit(burst.data.capacity()).position(burst.sourceOffset);
+                chunk.generate(gpuGenerator, burst.data, flushCursorOffset, runDestination, n);
+                runDestination += n;
+            } else {
+                if (runCount == 0) {
+                    runData = burst.data;
+                    runStart = source;
+                }
+                runCount += n;
+            }
+            copied += n;
+            flushCursorOffset += n;
+            if (flushCursorOffset == burst.count) {
+                flushCursor++;
+                flushCursorOffset = 0;
+            }
+        }
+        copyRun(chunk, runDestination, runData, runStart, runCount);
 
-        private AllocatedClusterData(int locationInBuffer, int size, float generationTime, float deathTime) {
-            this.locationInBuffer = locationInBuffer;
-            this.sizeInFloats = size;
-            this.generationTime = generationTime;
-            this.deathTime = deathTime;
+        ParticleChunk.AllocatedClusterData clusterData = chunk.registerCluster(location, count, generationTime, deathTime, bounds);
+        if (clusterData.queueIndex < 0) {
+            deathQueue.add(clusterData, arenaIndex);
+        } else {
+            deathQueue.deathTimeIncreased(clusterData);
         }
+    }
 
-        private void updateLocation(int newLocationInBuffer) {
-            locationInBuffer = newLocationInBuffer;
+    /**
+     * Copies {@code count} staged particles starting at byte {@code source} of {@code data}, or of the ring if
+     * {@code data} is {@code null}.
+     */
+    private void copyRun(ParticleChunk chunk, int location, ByteBuffer data, int source, int count) {
+        if (count <= 0) return;
+        if (data == null) {
+            chunk.copyFromRing(uploadRing, source, location, count);
+        } else {
+            data.limit(source + count * Particles.BYTES_PER_PARTICLE);
+            data.position(source);
+            chunk.upload(data, location);
         }
+    }
 
-        private void updateGenerationTime(float newGenerationTime) {generationTime = newGenerationTime;}
+    /**
+     * Hands the emitter a slice of the upload ring to write particle data into directly, falling back to the
+     * {@link FrameArena} if the ring is unavailable or full.
+     */
+    private ByteBuffer reserveStagingBuffer(int numBytes) {
+        if (uploadRing != null) {
+            long ringPosition = uploadRing.position();
+            stagingOffset = uploadRing.reserve(numBytes);
+            if (stagingOffset >= 0) {
+                // Keeps the reserved range from being released until this game state's bursts are flushed
+                if (stagingArena != null) {
+                    stagingArena.holdRing(ringPosition);
+                }
+                stagingData = null;
+                return uploadRing.slice(stagingOffset, numBytes);
+            }
+        }
+        return reserveLocalStaging(numBytes);
+    }
 
-        private void updateSize(int newSize) {
-            sizeInFloats = newSize;
+    /**
+     * Reserves {@code numBytes} bytes of {@link #stagingArena}. Bursts too big for the arena get a direct buffer of
+     * their own, which is dropped once they're flushed.
+     *
+     * @return A native-order view of the reserved bytes.
+     */
+    private ByteBuffer reserveLocalStaging(int numBytes) {
+        stagingOffset = stagingArena == null ? -1 : stagingArena.reserve(numBytes);
+        if (stagingOffset < 0) {
+            stagingOffset = 0;
+            stagingData = BufferUtils.createByteBuffer(numBytes);
+            return stagingData.duplicate().order(ByteOrder.nativeOrder());
         }
+        stagingData = stagingArena.buffer();
+        return stagingArena.slice(stagingOffset, numBytes);
+    }
 
-        @Override
-        public int compareTo(AllocatedClusterData o) {
-            return Integer.compare(locationInBuffer, o.locationInBuffer);
+    /** Deletes every chunk's GPU resources and discards any staged bursts. */
+    void delete() {
+        for (ParticleArena arena : arenas) {
+            arena.delete();
         }
+        chunkCount = 0;
+        deathQueue.clear();
+        pendingBursts.clear();
     }
 }
@@ -0,0 +1,52 @@
+package particleengine;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Set of {@link ParticleChunk}s within a {@link ParticleAllocator} that only holds bursts of similar lifetimes.
+ * Keeping short-lived bursts apart from long-lived ones means a single long-lived particle can't hold up tail trimming
+ * for a whole chunk of short-lived ones, so short-lived arenas empty out quickly and rarely need compacting.
+ */
+class ParticleArena {
+    /**
+     * Upper bounds, in seconds, of the lifetimes of the bursts in each arena but the last. The last arena takes every
+     * burst that lives longer than the last bound.
+     */
+    private static final float[] LIFETIME_BOUNDS = {1f, 5f};
+    static final int NUM_ARENAS = LIFETIME_BOUNDS.length + 1;
+
+    /** In allocation order; only the last chunk is ever appended to. */
+    final List<ParticleChunk> chunks = new ArrayList<>();
+    final FreeList freeList = new FreeList();
+
+    /** @return Index of the arena that bursts whose longest-lived particle lives for {@code maxLife} seconds go into. */
+    static int forLifetime(float maxLife) {
+        for (int i = 0; i < LIFETIME_BOUNDS.length; i++) {
+            if (maxLife < LIFETIME_BOUNDS[i]) {
+                return i;
+            }
+        }
+        return LIFETIME_BOUNDS.length;
+    }
+
+    /** @return The chunk that new particles are appended to, or {@code null} if there are no chunks. */
+    ParticleChunk lastChunk() {
+        return chunks.isEmpty() ? null : chunks.get(chunks.size() - 1);
+    }
+
+    /** Deletes {@code chunk}'s GPU resources and forgets any holes in it. */
+    void removeChunk(ParticleChunk chunk) {
+        freeList.clear(chunk);
+        chunk.delete();
+        chunks.remove(chunk);
+    }
+
+    /** Deletes every chunk's GPU resources. */
+    void delete() {
+        for (ParticleChunk chunk : chunks) {
+            chunk.delete();
+        }
+        chunks.clear();
+    }
+}
@@ -0,0 +1,384 @@
+package particleengine;
+
+import com.fs.starfarer.api.combat.ViewportAPI;
+import org.lwjgl.opengl.*;
+
+import java.nio.ByteBuffer;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+/**
+ * Piece of a {@link ParticleAllocator}'s storage with its own vertex buffer and vertex array. Starts small and grows by
+ * doubling up to {@value MAX_CAPACITY} particles; once a chunk is full, the allocator adds a new one, so the cost of
+ * growing is bounded no matter how many particles are live. <br>
+ * If given a {@link SharedParticleBuffer}, the chunk instead occupies a single fixed-size slot of that buffer.
+ */
+class ParticleChunk {
+    /** In number of particles. */
+    static final int INITIAL_CAPACITY = 128, MAX_CAPACITY = 16384;
+    /**
+     * If the fraction of live particles in the chunk is less than this number,
+     * will compact the chunk. Holes are normally refilled through the allocator's {@link FreeList},
+     * so this only kicks in for chunks that stay sparse.
+     */
+    private static final float REFACTOR_FILL_FRACTION = 0.25f;
+    /**
+     * If an allocated cluster is compatible with the previous cluster in the chunk (that is, it dies no more than
+     * {@code MAX_MERGE_DEATH_DELAY} seconds after the previous cluster), they will be merged, and the merged cluster
+     * dies when the later of the two would have.
+     */
+    private static final float MAX_MERGE_DEATH_DELAY = 0.5f;
+    /**
+     * Merging stops once the previous cluster's size exceeds {@code MAX_COALESCE_SIZE} particles,
+     * to avoid adversarial scenarios in which a single long-living particle gets merged with many short-lived particles,
+     * unnecessarily prolonging the life of all of those short-lived particles.
+     */
+    private static final int MAX_COALESCE_SIZE = 512;
+
+    private static int nextId = 0;
+    /** Used to order chunks deterministically. */
+    final int id = nextId++;
+    /** {@code null} if this chunk has its own vertex buffer. */
+    private final SharedParticleBuffer shared;
+    /** Slot in {@link #shared}, or {@code -1} if not using a shared buffer. */
+    private int slot = -1;
+    private final int vao;
+    private int vbo;
+    private int capacity;
+    private final int maxCapacity;
+    /** One past the last particle in use, in number of particles. */
+    int position = 0;
+    private int particleCount = 0;
+    private final SortedSet<AllocatedClusterData> allocatedClusters = new TreeSet<>();
+    private AllocatedClusterData lastAllocated = null;
+
+    ParticleChunk(SharedParticleBuffer shared) {
+        this.shared = shared;
+        if (shared != null) {
+            slot = shared.acquireSlot();
+            vao = 0;
+            capacity = maxCapacity = SharedParticleBuffer.SLOT_CAPACITY;
+            return;
+        }
+        vao = GL30.glGenVertexArrays();
+        capacity = INITIAL_CAPACITY;
+        maxCapacity = MAX_CAPACITY;
+        vbo = createBuffer(capacity);
+        bindVertexAttributes();
+    }
+
+    /** Creates an uninitialized vertex buffer that can hold {@code capacity} particles. */
+    private static int createBuffer(int capacity) {
+        int buffer = GL15.glGenBuffers();
+        GL15.glBindBuffer(GL15.GL_ARRAY_BUFFER, buffer);
+        GL15.glBufferData(GL15.GL_ARRAY_BUFFER, (long) capacity * Particles.BYTES_PER_PARTICLE, GL15.GL_DYNAMIC_DRAW);
+        GL15.glBindBuffer(GL15.GL_ARRAY_BUFFER, 0);
+        return buffer;
+    }
+
+    /** Points {@code vao}'s per-instance attributes at the current {@code vbo}. */
+    private void bindVertexAttributes() {
+        GL30.glBindVertexArray(vao);
+        GL15.glBindBuffer(GL15.GL_ARRAY_BUFFER, vbo);
+
+        for (int i = 0; i < Particles.VERTEX_ATTRIB_SIZES.length; i++) {
+            int size = Particles.VERTEX_ATTRIB_SIZES[i], type = Particles.VERTEX_ATTRIB_TYPES[i], offset = Particles.VERTEX_ATTRIB_OFFSETS[i];
+            GL20.glEnableVertexAttribArray(i);
+            if (type == GL11.GL_INT) {
+                GL30.glVertexAttribIPointer(i, size, type, Particles.BYTES_PER_PARTICLE, offset);
+            } else {
+                GL20.glVertexAttribPointer(i, size, type, false, Particles.BYTES_PER_PARTICLE, offset);
+            }
+            GL33.glVertexAttribDivisor(i, 1);
+        }
+
+        GL30.glBindVertexArray(0);
+        GL15.glBindBuffer(GL15.GL_ARRAY_BUFFER, 0);
+    }
+
+    /** Replaces {@code vbo} with {@code newBuffer}, deleting the old buffer. */
+    private void swapBuffer(int newBuffer) {
+        GL15.glDeleteBuffers(vbo);
+        vbo = newBuffer;
+        bindVertexAttributes();
+    }
+
+    /** @return Number of particles that can still be appended to this chunk. */
+    int remaining() {
+        return maxCapacity - position;
+    }
+
+    /** @return Location of this chunk's first particle in its vertex buffer. */
+    int baseInstance() {
+        return shared == null ? 0 : slot * SharedParticleBuffer.SLOT_CAPACITY;
+    }
+
+    private int buffer() {
+        return shared == null ? vbo : shared.getBuffer();
+    }
+
+    boolean isEmpty() {
+        return particleCount <= 0;
+    }
+
+    /**
+     * Reserves {@code count} particles at the end of this chunk, growing its buffer if needed.
+     * {@code count} must not exceed {@link #remaining()}.
+     *
+     * @return Location of the reserved range, in number of particles.
+     */
+    int reserve(int count) {
+        int location = position;
+        if (position + count > capacity) {
+            growBuffer(position + count);
+        }
+        position += count;
+        return location;
+    }
+
+    /** Copies {@code count} particles starting at byte {@code ringOffset} of the upload ring to {@code location}. */
+    void copyFromRing(UploadRing ring, int ringOffset, int location, int count) {
+        GL15.glBindBuffer(GL31.GL_COPY_READ_BUFFER, ring.getBuffer());
+        GL15.glBindBuffer(GL31.GL_COPY_WRITE_BUFFER, buffer());
+        GL31.glCopyBufferSubData(
+                GL31.GL_COPY_READ_BUFFER,
+                GL31.GL_COPY_WRITE_BUFFER,
+                ringOffset,
+                (long) (baseInstance() + location) * Particles.BYTES_PER_PARTICLE,
+                (long) count * Particles.BYTES_PER_PARTICLE);
+        GL15.glBindBuffer(GL31.GL_COPY_READ_BUFFER, 0);
+        GL15.glBindBuffer(GL31.GL_COPY_WRITE_BUFFER, 0);
+    }
+
+    /**
+     * Generates particles {@code [firstParticle, firstParticle + count)} of the burst whose parameter block is at
+     * {@code parameters}' position, writing them to {@code location}.
+     */
+    void generate(GpuParticleGenerator generator, ByteBuffer parameters, int firstParticle, int location, int count) {
+        generator.generate(parameters, firstParticle, count, buffer(), baseInstance() + location);
+    }
+
+    /** Uploads the remaining contents of {@code buffer} to {@code location}. */
+    void upload(ByteBuffer buffer, int location) {
+        GL15.glBindBuffer(GL15.GL_ARRAY_BUFFER, buffer());
+        GL15.glBufferSubData(GL15.GL_ARRAY_BUFFER, (long) (baseInstance() + location) * Particles.BYTES_PER_PARTICLE, buffer);
+        GL15.glBindBuffer(GL15.GL_ARRAY_BUFFER, 0);
+    }
+
+    /**
+     * Registers {@code count} particles starting at {@code location}, all of which stay inside {@code bounds}.
+     *
+     * @return The new cluster, or the previously allocated cluster if the particles were merged into it, in which case
+     * its death time may have increased.
+     */
+    AllocatedClusterData registerCluster(int location, int count, float generationTime, float deathTime, Bounds bounds) {
+        particleCount += count;
+        // See if we can merge this cluster with the previously generated one
+        int mergedSize;
+        if (lastAllocated != null
+                && (mergedSize = lastAllocated.size + count) <= MAX_COALESCE_SIZE
+                && lastAllocated.deathTime + MAX_MERGE_DEATH_DELAY >= deathTime
+                && lastAllocated.location + lastAllocated.size == location) {
+            // This shouldn't be needed since generation time should always be current time,
+            // so lastAllocated 's generation time should always be smaller.
+            // But update the generation time just in case
+            lastAllocated.updateGenerationTime(Math.min(lastAllocated.generationTime, generationTime));
+            lastAllocated.updateSize(mergedSize);
+            lastAllocated.updateBounds(lastAllocated.bounds.union(bounds));
+            lastAllocated.updateDeathTime(Math.max(lastAllocated.deathTime, deathTime));
+            return lastAllocated;
+        }
+        AllocatedClusterData clusterData = new AllocatedClusterData(this, location, count, generationTime, deathTime, bounds);
+        allocatedClusters.add(clusterData);
+        lastAllocated = clusterData;
+        return clusterData;
+    }
+
+    /**
+     * Calls {@code draw} with the location and size of each run of consecutive clusters whose bounds intersect
+     * {@code viewport}. A run may span holes left by dead clusters, but never a cluster that's off-screen.
+     */
+    void forEachVisibleRun(ViewportAPI viewport, RunConsumer draw) {
+        int runStart = -1, runEnd = -1;
+        for (AllocatedClusterData clusterData : allocatedClusters) {
+            if (!clusterData.bounds.intersects(viewport)) {
+                if (runStart >= 0) {
+                    draw.accept(runStart, runEnd - runStart);
+                    runStart = -1;
+                }
+                continue;
+            }
+            if (runStart < 0) {
+                runStart = clusterData.location;
+            }
+            runEnd = clusterData.location + clusterData.size;
+        }
+        if (runStart >= 0) {
+            draw.accept(runStart, runEnd - runStart);
+        }
+    }
+
+    @FunctionalInterface
+    interface RunConsumer {
+        /** @param location In number of particles, relative to the start of the chunk. */
+        void accept(int location, int count);
+    }
+
+    /**
+     * Removes a dead cluster, then trims the chunk if the cluster was at its tail, or compacts the chunk if enough of
+     * it is dead.
+     *
+     * @return Whether the chunk was compacted, moving its remaining clusters.
+     */
+    boolean removeCluster(AllocatedClusterData clusterData) {
+        allocatedClusters.remove(clusterData);
+        if (lastAllocated == clusterData) {
+            lastAllocated = null;
+        }
+        particleCount -= clusterData.size;
+        if (isEmpty()) {
+            position = 0;
+        } else if (clusterData.location + clusterData.size == position) {
+            // Was at the tail, so the chunk can shrink without moving anything
+            AllocatedClusterData last = allocatedClusters.last();
+            position = last.location + last.size;
+        } else if (particleCount < REFACTOR_FILL_FRACTION * position) {
+            compact();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Compacts the live clusters to the start of a new buffer of the same size, or of a new slot if using a shared
+     * buffer. All copies are done on the GPU; particle data is never read back.
+     */
+    private void compact() {
+        // Acquire the new slot first, since that may replace the shared buffer
+        int newSlot = shared == null ? -1 : shared.acquireSlot();
+        int newBuffer = shared == null ? createBuffer(capacity) : shared.getBuffer();
+        int oldBase = baseInstance(), newBase = shared == null ? 0 : newSlot * SharedParticleBuffer.SLOT_CAPACITY;
+        GL15.glBindBuffer(GL31.GL_COPY_READ_BUFFER, buffer());
+        GL15.glBindBuffer(GL31.GL_COPY_WRITE_BUFFER, newBuffer);
+
+        int newPosition = 0;
+        // Start and size of the run of consecutive clusters that are yet to be copied
+        int runStart = -1, runSize = 0;
+        for (AllocatedClusterData clusterData : allocatedClusters) {
+            if (runStart + runSize != clusterData.location) {
+                copyRange(oldBase + runStart, newBase + newPosition - runSize, runSize);
+                runStart = clusterData.location;
+                runSize = 0;
+            }
+            clusterData.updateLocation(newPosition);
+            runSize += clusterData.size;
+            newPosition += clusterData.size;
+        }
+        copyRange(oldBase + runStart, newBase + newPosition - runSize, runSize);
+        position = newPosition;
+
+        GL15.glBindBuffer(GL31.GL_COPY_READ_BUFFER, 0);
+        GL15.glBindBuffer(GL31.GL_COPY_WRITE_BUFFER, 0);
+        if (shared == null) {
+            swapBuffer(newBuffer);
+        } else {
+            shared.releaseSlot(slot);
+            slot = newSlot;
+        }
+    }
+
+    /**
+     * Grows the buffer to fit at least {@code requiredCapacity} particles, keeping its existing contents.
+     * The existing contents are copied on the GPU. Never called for chunks in a shared buffer, which start at full
+     * capacity.
+     */
+    private void growBuffer(int requiredCapacity) {
+        int newCapacity = Utils.nearestBiggerPowerOfTwo(requiredCapacity, INITIAL_CAPACITY, MAX_CAPACITY);
+        int newBuffer = createBuffer(newCapacity);
+        GL15.glBindBuffer(GL31.GL_COPY_READ_BUFFER, vbo);
+        GL15.glBindBuffer(GL31.GL_COPY_WRITE_BUFFER, newBuffer);
+        copyRange(0, 0, position);
+        GL15.glBindBuffer(GL31.GL_COPY_READ_BUFFER, 0);
+        GL15.glBindBuffer(GL31.GL_COPY_WRITE_BUFFER, 0);
+        swapBuffer(newBuffer);
+        capacity = newCapacity;
+    }
+
+    /** Copies {@code count} particles from {@code GL_COPY_READ_BUFFER} to {@code GL_COPY_WRITE_BUFFER}. */
+    private static void copyRange(int from, int to, int count) {
+        if (count <= 0) return;
+        GL31.glCopyBufferSubData(
+                GL31.GL_COPY_READ_BUFFER,
+                GL31.GL_COPY_WRITE_BUFFER,
+                (long) from * Particles.BYTES_PER_PARTICLE,
+                (long) to * Particles.BYTES_PER_PARTICLE,
+                (long) count * Particles.BYTES_PER_PARTICLE);
+    }
+
+    void delete() {
+        if (shared != null) {
+            shared.releaseSlot(slot);
+            return;
+        }
+        GL15.glDeleteBuffers(vbo);
+        GL30.glDeleteVertexArrays(vao);
+    }
+
+    int getVAO() {return shared == null ? vao : shared.getVAO();}
+
+    static class AllocatedClusterData implements Comparable<AllocatedClusterData> {
+        /** Chunk the cluster is in. */
+        final ParticleChunk chunk;
+        /** In number of particles. */
+        private int location, size;
+        private float generationTime;
+        private float deathTime;
+        private Bounds bounds;
+        /** Index in the owning allocator's {@link ClusterDeathQueue}, or {@code -1} if not in it. */
+        int queueIndex = -1;
+
+        private AllocatedClusterData(ParticleChunk chunk, int location, int size, float generationTime, float deathTime, Bounds bounds) {
+            this.chunk = chunk;
+            this.location = location;
+            this.size = size;
+            this.generationTime = generationTime;
+            this.deathTime = deathTime;
+            this.bounds = bounds;
+        }
+
+        private void updateLocation(int newLocation) {
+            location = newLocation;
+        }
+
+        private void updateGenerationTime(float newGenerationTime) {generationTime = newGenerationTime;}
+
+        private void updateSize(int newSize) {
+            size = newSize;
+        }
+
+        private void updateDeathTime(float newDeathTime) {
+            deathTime = newDeathTime;
+        }
+
+        private void updateBounds(Bounds newBounds) {
+            bounds = newBounds;
+        }
+
+        int getLocation() {
+            return location;
+        }
+
+        int getSize() {
+            return size;
+        }
+
+        float getDeathTime() {
+            return deathTime;
+        }
+
+        @Override
+        public int compareTo(AllocatedClusterData o) {
+            return Integer.compare(location, o.location);
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package particleengine;
+
+import com.fs.starfarer.api.combat.ViewportAPI;
+import org.lwjgl.BufferUtils;
+import org.lwjgl.opengl.*;
+
+import java.nio.IntBuffer;
+
+/**
+ * Compute pass that runs over a {@link SharedParticleBuffer}'s draw commands before they're drawn, and lists only
+ * the particles that are alive and on screen. Each command's instance count is replaced by its number of listed
+ * particles, so dead and off-screen particles never reach the vertex shader. Drawing the culled commands requires the
+ * {@link ParticleShader#CULLED} variant and this culler's vertex array, which feeds the listed indices to the vertex
+ * shader; the vertex shader then reads particle data straight out of the shared buffer.
+ */
+class ParticleCuller {
+    /** Must match cull.comp. */
+    private static final int WORK_GROUP_SIZE = 64;
+    /** Number of ints in a {@code DrawArraysIndirectCommand}. */
+    private static final int COMMAND_SIZE = 4;
+    private static final int jobsBinding = 4, culledCommandsBinding = 5, liveIndicesBinding = 6;
+
+    private final int programId;
+    private final int timeLoc, viewBoundsLoc;
+    /** The uncut draw commands, read by the compute shader. */
+    private final int jobsBuffer;
+    /** Draw commands with culled instance counts; written by the compute shader, then drawn. */
+    private final int culledCommandsBuffer;
+    /** Indices of the listed particles, which are the culled commands' per-instance vertex data. */
+    private final int liveIndicesBuffer;
+    /** In number of indices. */
+    private int liveIndicesCapacity = 0;
+    private final int vao;
+    private IntBuffer culledCommands = BufferUtils.createIntBuffer(64 * COMMAND_SIZE);
+    /** In bytes. The vertex and compute shaders can't read the shared buffer as storage if it's bigger than this. */
+    private final long maxStorageBlockSize;
+
+    ParticleCuller() {
+        programId = Shader.createComputeProgram("cull.comp", ParticleShader.defines(ParticleShader.ALL_FEATURES));
+        timeLoc = GL20.glGetUniformLocation(programId, "time");
+        viewBoundsLoc = GL20.glGetUniformLocation(programId, "viewBounds");
+        jobsBuffer = GL15.glGenBuffers();
+        culledCommandsBuffer = GL15.glGenBuffers();
+        liveIndicesBuffer = GL15.glGenBuffers();
+        maxStorageBlockSize = GL32.glGetInteger64(GL43.GL_MAX_SHADER_STORAGE_BLOCK_SIZE);
+
+        vao = GL30.glGenVertexArrays();
+        GL30.glBindVertexArray(vao);
+        GL20.glEnableVertexAttribArray(0);
+        GL43.glVertexAttribIFormat(0, 1, GL11.GL_INT, 0);
+        GL43.glVertexAttribBinding(0, 0);
+        GL43.glVertexBindingDivisor(0, 1);
+        GL30.glBindVertexArray(0);
+    }
+
+    /** @return Whether {@code shared} is small enough for its particles to be read as shader storage. */
+    boolean canCull(SharedParticleBuffer shared) {
+        return (long) shared.capacity() * Particles.BYTES_PER_PARTICLE <= maxStorageBlockSize;
+    }
+
+    /**
+     * Culls the particles of every command added to {@code shared} since it last cleared its commands, then binds the
+     * culled commands to {@code GL_DRAW_INDIRECT_BUFFER} and the shared buffer to
+     * {@link ParticleShader#particleRecordsBinding}. The caller still has to bind {@link #getVAO()} before drawing.
+     */
+    void cull(SharedParticleBuffer shared, ViewportAPI viewport) {
+        IntBuffer jobs = shared.getCommands();
+        ensureLiveIndicesCapacity(shared.capacity());
+        if (culledCommands.capacity() < jobs.remaining()) {
+            culledCommands = BufferUtils.createIntBuffer(Math.max(jobs.remaining(), culledCommands.capacity() * 2));
+        }
+        culledCommands.clear();
+        culledCommands.put(jobs).flip();
+        jobs.rewind();
+        int numCommands = jobs.remaining() / COMMAND_SIZE;
+        for (int i = 0; i < numCommands; i++) {
+            culledCommands.put(COMMAND_SIZE * i + 1, 0);
+        }
+
+        GL15.glBindBuffer(GL43.GL_SHADER_STORAGE_BUFFER, jobsBuffer);
+        GL15.glBufferData(GL43.GL_SHADER_STORAGE_BUFFER, jobs, GL15.GL_STREAM_DRAW);
+        GL15.glBindBuffer(GL43.GL_SHADER_STORAGE_BUFFER, culledCommandsBuffer);
+        GL15.glBufferData(GL43.GL_SHADER_STORAGE_BUFFER, culledCommands, GL15.GL_STREAM_DRAW);
+        GL15.glBindBuffer(GL43.GL_SHADER_STORAGE_BUFFER, 0);
+        GL30.glBindBufferBase(GL43.GL_SHADER_STORAGE_BUFFER, ParticleShader.particleRecordsBinding, shared.getBuffer());
+        GL30.glBindBufferBase(GL43.GL_SHADER_STORAGE_BUFFER, jobsBinding, jobsBuffer);
+        GL30.glBindBufferBase(GL43.GL_SHADER_STORAGE_BUFFER, culledCommandsBinding, culledCommandsBuffer);
+        GL30.glBindBufferBase(GL43.GL_SHADER_STORAGE_BUFFER, liveIndicesBinding, liveIndicesBuffer);
+
+        GL20.glUseProgram(programId);
+        GL20.glUniform1f(timeLoc, Particles.getCurrentTime());
+        GL20.glUniform4f(
+                viewBoundsLoc,
+                viewport.getLLX(),
+                viewport.getLLY(),
+                viewport.getLLX() + viewport.getVisibleWidth(),
+                viewport.getLLY() + viewport.getVisibleHeight());
+        GL43.glDispatchCompute(SharedParticleBuffer.SLOT_CAPACITY / WORK_GROUP_SIZE, numCommands, 1);
+        GL42.glMemoryBarrier(GL42.GL_COMMAND_BARRIER_BIT | GL42.GL_VERTEX_ATTRIB_ARRAY_BARRIER_BIT);
+
+        GL15.glBindBuffer(GL40.GL_DRAW_INDIRECT_BUFFER, culledCommandsBuffer);
+    }
+
+    /** Reallocates the live index buffer if it can't hold an index for each of {@code numParticles} particles. */
+    private void ensureLiveIndicesCapacity(int numParticles) {
+        if (liveIndicesCapacity >= numParticles) return;
+        GL15.glBindBuffer(GL15.GL_ARRAY_BUFFER, liveIndicesBuffer);
+        GL15.glBufferData(GL15.GL_ARRAY_BUFFER, (long) numParticles * Integer.BYTES, GL15.GL_DYNAMIC_COPY);
+        GL15.glBindBuffer(GL15.GL_ARRAY_BUFFER, 0);
+        liveIndicesCapacity = numParticles;
+
+        GL30.glBindVertexArray(vao);
+        GL43.glBindVertexBuffer(0, liveIndicesBuffer, 0, Integer.BYTES);
+        GL30.glBindVertexArray(0);
+    }
+
+    int getVAO() {return vao;}
+}
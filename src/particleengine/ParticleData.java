@@ -1,10 +1,8 @@
 package particleengine;
 
-import com.fs.starfarer.api.util.Misc;
 import org.lwjgl.util.vector.Vector2f;
 
 import java.awt.*;
-import java.nio.FloatBuffer;
 
 /** Pre-generation data for a single particle. */
 @SuppressWarnings("UnusedReturnValue")
@@ -289,46 +287,28 @@ public class ParticleData {
         return this;
     }
 
-    final void addToFloatBuffer(IEmitter emitter, float startTime, FloatBuffer buffer) {
-        Vector2f emitterLocation = emitter.getLocation();
-        buffer.put(emitter.getIndexInTracker() + 0.5f)
-            .put(offset.x)
-            .put(offset.y)
-            .put(emitterLocation.x)
-            .put(emitterLocation.y)
-            .put(emitter.getXDir() * Misc.RAD_PER_DEG)
-            .put(velocity.x)
-            .put(velocity.y)
-            .put(acceleration.x)
-            .put(acceleration.y)
-            .put(sinXAmp)
-            .put(sinXFreq * twoPi)
-            .put(sinXPhase * Misc.RAD_PER_DEG)
-            .put(sinYAmp)
-            .put(sinYFreq * twoPi)
-            .put(sinYPhase * Misc.RAD_PER_DEG)
-            .put(facing * Misc.RAD_PER_DEG)
-            .put(turnRate * Misc.RAD_PER_DEG)
-            .put(turnAcceleration * Misc.RAD_PER_DEG)
-            .put(revolutionRate * Misc.RAD_PER_DEG)
-            .put(revolutionAcceleration * Misc.RAD_PER_DEG)
-            .put(size.x)
-            .put(growthRate.x)
-            .put(growthAcceleration.x)
-            .put(size.y)
-            .put(growthRate.y)
-            .put(growthAcceleration.y)
-            .put(color[0])
-            .put(color[1])
-            .put(color[2])
-            .put(color[3])
-            .put(colorShift[0])
-            .put(colorShift[1])
-            .put(colorShift[2])
-            .put(colorShift[3])
-            .put(fadeTime.x)
-            .put(fadeTime.y)
-            .put(startTime)
-            .put(startTime + life);
+
+    /** Sets every property of {@code writer}'s current particle to this particle's. */
+    final void writeTo(ParticleWriter writer) {
+        writer.offset(offset.x, offset.y)
+            .velocity(velocity.x, velocity.y)
+            .acceleration(acceleration.x, acceleration.y)
+            .sinusoidalXMotion(sinXAmp, sinXFreq, sinXPhase)
+            .sinusoidalYMotion(sinYAmp, sinYFreq, sinYPhase)
+            .facing(facing)
+            .turnRate(turnRate)
+            .turnAcceleration(turnAcceleration)
+            .revolutionRate(revolutionRate)
+            .revolutionAcceleration(revolutionAcceleration)
+            .size(size.x, size.y)
+            .growthRate(growthRate.x, growthRate.y)
+            .growthAcceleration(growthAcceleration.x, growthAcceleration.y)
+            .colorHSVA(color[0], color[1], color[2], color[3])
+            .hueShift(colorShift[0])
+            .saturationShift(colorShift[1])
+            .colorValueShift(colorShift[2])
+            .alphaShift(colorShift[3])
+            .fadeTime(fadeTime.x, fadeTime.y)
+            .life(life);
     }
 }
@@ -15,6 +15,31 @@ public class ParticleEngineModPlugin extends BaseModPlugin {
     static String savedEmittersDirectory = null;
     private static final Logger log = Logger.getLogger(ParticleEngineModPlugin.class);
     public static boolean enabled = true;
+    /** Whether particle data should be written directly into a persistently mapped upload buffer, if supported. */
+    static boolean persistentMappedUploads = true;
+    /**
+     * Whether every particle type should share a single vertex buffer, so that draws with the same GL state can be
+     * merged into one multi-draw call.
+     */
+    static boolean sharedParticleBuffer = false;
+    /**
+     * Whether a compute pass should drop dead and off-screen particles from each frame's draws. Needs
+     * {@link #sharedParticleBuffer}.
+     */
+    static boolean computeCulling = false;
+    /**
+     * Whether large bursts from the default {@link Emitter} should be generated by a compute shader instead of on the
+     * CPU.
+     */
+    static boolean gpuEmitterGeneration = false;
+    /** Whether large bursts from thread-safe emitters should be generated on several threads. */
+    static boolean parallelGeneration = true;
+    /** Whether particles for streams from thread-safe emitters should be generated on worker threads, see {@link StreamPipeline}. */
+    static boolean pipelinedStreams = true;
+    /** Whether small sprites of the same size should share particle types through {@link SpriteArray}s. */
+    static boolean textureArrays = false;
+    /** Whether loose sprites loaded through {@link Utils#getLoadedSprite} should be packed into a {@link SpriteArray} atlas. */
+    static boolean spriteAtlas = false;
     static Particles particlesInstance = null;
 
     @Override
@@ -23,6 +48,18 @@ public class ParticleEngineModPlugin extends BaseModPlugin {
             JSONObject modInfo = Global.getSettings().loadJSON("particleengine_settings.json");
             enabled = modInfo.getBoolean("enabled");
             savedEmittersDirectory = modInfo.getString("savedEmittersDirectory");
+            persistentMappedUploads = modInfo.optBoolean("persistentMappedUploads", persistentMappedUploads);
+            sharedParticleBuffer = modInfo.optBoolean("sharedParticleBuffer", sharedParticleBuffer);
+            computeCulling = modInfo.optBoolean("computeCulling", computeCulling);
+            gpuEmitterGeneration = modInfo.optBoolean("gpuEmitterGeneration", gpuEmitterGeneration);
+            parallelGeneration = modInfo.optBoolean("parallelGeneration", parallelGeneration);
+            pipelinedStreams = modInfo.optBoolean("pipelinedStreams", pipelinedStreams);
+            textureArrays = modInfo.optBoolean("textureArrays", textureArrays);
+            spriteAtlas = modInfo.optBoolean("spriteAtlas", spriteAtlas);
+            if (computeCulling && !sharedParticleBuffer) {
+                log.warn("computeCulling requires sharedParticleBuffer to be enabled; particles will not be culled.");
+                computeCulling = false;
+            }
         }
         catch (IOException | JSONException e) {
             log.error("Could not read savedEmittersDirectory in mod_info.json. Writing emitters to file will be disabled.", e);
@@ -0,0 +1,101 @@
+package particleengine;
+
+import com.fs.starfarer.api.util.Misc;
+
+/**
+ * Fast, seedable random number generator for particle generation, based on SplitMix64. Every {@link IEmitter} has
+ * its own, see {@link IEmitter#getRandom()}. <br>
+ * Before each particle is initialized, the generator is re-keyed from its seed, the number of bursts generated
+ * since it was seeded, and the particle's index in the burst. A particle's random values therefore only depend on
+ * those three things, not on what was generated before it, so seeded emitters produce the same particles every time
+ * and a burst's particles can be generated in any order. <br>
+ * Not thread-safe.
+ */
+@SuppressWarnings("unused")
+public final class ParticleRandom {
+    private static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+
+    private long seed;
+    /** Number of bursts started since {@link #setSeed} was last called. */
+    private long burstCount = 0;
+    private long burstKey;
+    private long state;
+
+    /** Creates a generator with a random seed. */
+    public ParticleRandom() {
+        this(Misc.random.nextLong());
+    }
+
+    public ParticleRandom(long seed) {
+        setSeed(seed);
+    }
+
+    /** Creates a generator that produces the same values as {@code other}, without drawing a new seed. */
+    ParticleRandom(ParticleRandom other) {
+        copyFrom(other);
+    }
+
+    /** Reseeds the generator and restarts its burst count, so that later bursts repeat exactly. */
+    public void setSeed(long seed) {
+        this.seed = seed;
+        burstCount = 0;
+        burstKey = mix(seed);
+        state = burstKey;
+    }
+
+    /** Makes this generator produce the same values as {@code other} from here on. */
+    void copyFrom(ParticleRandom other) {
+        seed = other.seed;
+        burstCount = other.burstCount;
+        burstKey = other.burstKey;
+        state = other.state;
+    }
+
+    public long getSeed() {
+        return seed;
+    }
+
+    /** Re-keys the generator for the next burst. */
+    void beginBurst() {
+        burstKey = mix(seed + ++burstCount * GOLDEN_GAMMA);
+        state = burstKey;
+    }
+
+    /** Re-keys the generator for particle {@code id} of the current burst. */
+    void beginParticle(int id) {
+        state = mix(burstKey ^ (id * GOLDEN_GAMMA));
+    }
+
+    public long nextLong() {
+        return mix(state += GOLDEN_GAMMA);
+    }
+
+    public int nextInt() {
+        return (int) (nextLong() >>> 32);
+    }
+
+    /** @return A uniformly random integer in {@code [0, bound)}. {@code bound} must be positive. */
+    public int nextInt(int bound) {
+        return (int) (((nextLong() >>> 33) * bound) >>> 31);
+    }
+
+    /** @return A uniformly random float in {@code [0, 1)}. */
+    public float nextFloat() {
+        return (nextLong() >>> 40) * 0x1.0p-24f;
+    }
+
+    /**
+     * @return A uniformly random float between {@code a} and {@code b}. Unlike {@link java.util.Random}, {@code a}
+     * doesn't have to be less than {@code b}; if they're equal, the result is {@code a}.
+     */
+    public float nextFloat(float a, float b) {
+        return nextFloat() * (b - a) + a;
+    }
+
+    /** Stafford's variant 13 of the MurmurHash3 finalizer, as used by SplitMix64. */
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+}
@@ -3,18 +3,129 @@ package particleengine;
 import com.fs.starfarer.api.combat.ViewportAPI;
 import org.lwjgl.opengl.*;
 
+import java.util.Arrays;
+import java.util.List;
 
 record ParticleRenderer(Object layer, ParticleAllocator allocator, Particles owner) {
+    /**
+     * For each group of consecutive renderers with the same GL state, in {@link #renderAll}: the index of the group's
+     * first renderer, the index of its first draw command, and its number of draw commands.
+     */
+    private static int[] groups = new int[3 * 16];
+
+    /**
+     * Renders every renderer in {@code renderers}, in order. If using a {@link SharedParticleBuffer}, consecutive
+     * renderers that share GL state are drawn with a single {@code glMultiDrawArraysIndirect} call, after a
+     * {@link ParticleCuller} drops their dead and off-screen particles if culling is enabled.
+     */
+    static void renderAll(List<ParticleRenderer> renderers, ViewportAPI viewport) {
+        SharedParticleBuffer shared = ParticleAllocator.sharedBuffer;
+        if (shared == null) {
+            for (ParticleRenderer renderer : renderers) {
+                renderer.render(viewport);
+            }
+            return;
+        }
+
+        shared.clearCommands();
+        int numGroups = 0, numCommands = 0;
+        for (int i = 0; i < renderers.size(); i++) {
+            ParticleRenderer renderer = renderers.get(i);
+            if (i == 0 || !renderer.sharesStateWith(renderers.get(i - 1))) {
+                if (3 * numGroups + 3 > groups.length) {
+                    groups = Arrays.copyOf(groups, groups.length * 2);
+                }
+                groups[3 * numGroups] = i;
+                groups[3 * numGroups + 1] = numCommands;
+                groups[3 * numGroups + 2] = 0;
+                numGroups++;
+            }
+            for (ParticleArena arena : renderer.allocator.arenas) {
+                for (ParticleChunk chunk : arena.chunks) {
+                    int baseInstance = chunk.baseInstance();
+                    chunk.forEachVisibleRun(viewport, (location, count) -> shared.addCommand(count, baseInstance + location));
+                }
+            }
+            int groupCommands = shared.numCommands() - numCommands;
+            groups[3 * numGroups - 1] += groupCommands;
+            numCommands += groupCommands;
+        }
+        if (numCommands == 0) return;
+
+        boolean culled = shared.culler != null && shared.culler.canCull(shared);
+        if (culled) {
+            shared.culler.cull(shared, viewport);
+            GL30.glBindVertexArray(shared.culler.getVAO());
+        } else {
+            shared.bindCommands();
+            GL30.glBindVertexArray(shared.getVAO());
+        }
+        for (int i = 0; i < numGroups; i++) {
+            int count = groups[3 * i + 2];
+            if (count == 0) continue;
+            renderers.get(groups[3 * i]).bindState(viewport, culled);
+            SharedParticleBuffer.drawCommands(groups[3 * i + 1], count);
+        }
+        GL30.glBindVertexArray(0);
+        SharedParticleBuffer.unbindCommands();
+        GL13.glActiveTexture(GL13.GL_TEXTURE0);
+    }
+
     public void render(ViewportAPI viewport) {
+        boolean hasTexture = bindState(viewport, false);
+        for (ParticleArena arena : allocator.arenas) {
+            for (ParticleChunk chunk : arena.chunks) {
+                GL30.glBindVertexArray(chunk.getVAO());
+                chunk.forEachVisibleRun(viewport, (location, count) ->
+                        GL42.glDrawArraysInstancedBaseInstance(
+                                GL11.GL_TRIANGLE_STRIP,
+                                0,
+                                4,
+                                count,
+                                location));
+            }
+        }
+        GL30.glBindVertexArray(0);
+        if (hasTexture) {
+            GL13.glActiveTexture(GL13.GL_TEXTURE0);
+        }
+    }
+
+    /**
+     * Whether this renderer's particles can be drawn with the same shader variant, blending, texture, and uniforms as
+     * {@code other}'s.
+     */
+    private boolean sharesStateWith(ParticleRenderer other) {
+        ParticleType type = allocator.type, otherType = other.allocator.type;
+        return allocator.shaderFeatures == other.allocator.shaderFeatures
+                && type.sprite() == otherType.sprite()
+                && type.spriteArray() == otherType.spriteArray()
+                && type.sfactor() == otherType.sfactor()
+                && type.dfactor() == otherType.dfactor()
+                && type.blendMode() == otherType.blendMode();
+    }
+
+    /**
+     * Binds the shader variant and sets up blending, textures, and uniforms for this renderer's particle type.
+     *
+     * @param culled Whether to bind the variant that draws particles listed by a {@link ParticleCuller}.
+     * @return Whether a texture was bound.
+     */
+    private boolean bindState(ViewportAPI viewport, boolean culled) {
         ParticleType type = allocator.type;
+        ParticleShader.use(culled ? allocator.shaderFeatures | ParticleShader.CULLED : allocator.shaderFeatures);
         GL11.glEnable(GL11.GL_BLEND);
         GL11.glBlendFunc(type.sfactor(), type.dfactor());
         GL14.glBlendEquation(type.blendMode());
 
         float spriteCenterX = 0.5f, spriteCenterY = 0.5f;
-        boolean hasTexture = type.sprite() != null && type.sprite().getTextureId() > 0;
-        if (hasTexture) {
-            int target = 1;
+        boolean hasTexture = type.spriteArray() != null || type.sprite() != null && type.sprite().getTextureId() > 0;
+        if (type.spriteArray() != null) {
+            // Texture coordinates and sprite center are looked up per sprite entry instead
+            type.spriteArray().bind(ParticleShader.TEXTURE_ARRAY_UNIT);
+            GL20.glUniform2f(ParticleShader.textureSizeLoc, 1f, 1f);
+        } else if (hasTexture) {
+            int target = ParticleShader.TEXTURE_UNIT;
             GL13.glActiveTexture(GL13.GL_TEXTURE0 + target);
             GL11.glBindTexture(GL11.GL_TEXTURE_2D, type.sprite().getTextureId());
             GL20.glUniform1i(ParticleShader.texSamplerLoc, target);
@@ -30,16 +141,8 @@ record ParticleRenderer(Object layer, ParticleAllocator allocator, Particles own
         }
         GL20.glUniform2f(ParticleShader.spriteCenterLoc, spriteCenterX, spriteCenterY);
         GL20.glUniform1f(ParticleShader.viewportAlphaLoc, viewport.getAlphaMult());
-        GL30.glBindVertexArray(allocator.getVAO());
         GL20.glUniform1i(ParticleShader.useTextureLoc, !hasTexture ? 0 : 1);
-        GL31.glDrawArraysInstanced(
-                GL11.GL_TRIANGLE_STRIP,
-                0,
-                4,
-                allocator.bufferPosition / Particles.FLOATS_PER_PARTICLE);
-        GL30.glBindVertexArray(0);
-        if (hasTexture) {
-            GL13.glActiveTexture(GL13.GL_TEXTURE0);
-        }
+        GL20.glUniform1i(ParticleShader.useTextureArrayLoc, type.spriteArray() == null ? 0 : 1);
+        return hasTexture;
     }
 }
@@ -1,39 +1,178 @@
 package particleengine;
 
 import org.lwjgl.opengl.GL20;
+import org.lwjgl.opengl.GL31;
 import org.lwjgl.opengl.GL43;
 
+import java.nio.FloatBuffer;
+
+/**
+ * Particle shader program. The vertex shader is compiled into variants that each only include the features in a
+ * bitmask of the flags below; each {@link ParticleType} uses the variant matching the features its particles use.
+ * Variants are compiled the first time they're needed. The static uniform locations always refer to the variant
+ * most recently passed to {@link #use}.
+ */
 abstract class ParticleShader extends Shader {
+    /** Some particle has sinusoidal motion. */
+    static final int SINUSOID = 1;
+    /** Some particle revolves around its emitter. */
+    static final int REVOLUTION = 1 << 1;
+    /** Some particle's size changes over time. */
+    static final int GROWTH = 1 << 2;
+    /** Some particle's hue or saturation changes over time, so its color has to be converted from HSV per vertex. */
+    static final int HSV = 1 << 3;
+    /** Some particle follows a dynamically anchored emitter. */
+    static final int TRACKED = 1 << 4;
+    static final int ALL_FEATURES = (1 << 5) - 1;
+    /**
+     * Not a particle feature; the variant draws the particles listed by {@link ParticleCuller} instead of taking
+     * particle data as vertex attributes.
+     */
+    static final int CULLED = 1 << 5;
+    private static final String[] featureNames = {"SINUSOID", "REVOLUTION", "GROWTH", "HSV", "TRACKED", "CULLED"};
+
+    /**
+     * Set in a particle's burst id if the particle's color is stored as RGB, i.e. its hue and saturation don't change.
+     * Must match the vertex shader.
+     */
+    static final int RGB_FLAG = 1 << 30;
+
     public static int programId = -1;
     public static int projectionLoc;
     public static int timeLoc;
     public static int useTextureLoc;
     public static int texSamplerLoc;
+    public static int texArraySamplerLoc;
+    public static int useTextureArrayLoc;
     public static int textureSizeLoc;
     public static int spriteCenterLoc;
     public static int viewportAlphaLoc;
     public static int trackedEmitterBlockLoc;
+    public static int burstBlockLoc;
+    public static int particleRecordsBlockLoc;
     public static final int trackedEmitterBinding = 1;
+    public static final int burstBinding = 2;
+    public static final int particleRecordsBinding = 3;
+    public static final int spriteEntriesBinding = 9;
+    /** Texture units that sprites and {@link SpriteArray}s are bound to. */
+    static final int TEXTURE_UNIT = 1, TEXTURE_ARRAY_UNIT = 2;
     public static String
             projectionName = "projection",
             timeName = "time",
             useTextureName = "useTexture",
             textureSizeName = "textureScale",
             texSamplerName = "texSampler",
+            texArraySamplerName = "texArraySampler",
+            useTextureArrayName = "useTextureArray",
             spriteCenterName = "spriteCenter",
             viewportAlphaName = "viewportAlpha",
-            trackedEmittersName = "TrackedEmitters";
+            trackedEmittersName = "TrackedEmitters",
+            burstsName = "Bursts",
+            particleRecordsName = "ParticleRecords",
+            spriteEntriesName = "SpriteEntries";
+
+    private static String vertShaderPath, fragShaderPath;
+    /** Indexed by feature bitmask. */
+    private static final Variant[] variants = new Variant[(ALL_FEATURES | CULLED) + 1];
+    private static FloatBuffer projection;
+    private static float time;
+    /** Incremented whenever the projection or time changes, so that variants know to update their uniforms. */
+    private static int frameUniformsVersion = 0;
+
+    private static class Variant {
+        int programId;
+        int projectionLoc, timeLoc, useTextureLoc, texSamplerLoc, texArraySamplerLoc, useTextureArrayLoc, textureSizeLoc, spriteCenterLoc, viewportAlphaLoc;
+        int frameUniformsVersion = -1;
+    }
 
     public static void init(String vertShaderPath, String fragShaderPath) {
-        programId = Shader.createProgram(vertShaderPath, fragShaderPath, programId);
-        projectionLoc = GL20.glGetUniformLocation(programId, projectionName);
-        timeLoc = GL20.glGetUniformLocation(programId, timeName);
-        useTextureLoc = GL20.glGetUniformLocation(programId, useTextureName);
-        texSamplerLoc = GL20.glGetUniformLocation(programId, texSamplerName);
-        textureSizeLoc = GL20.glGetUniformLocation(programId, textureSizeName);
-        spriteCenterLoc = GL20.glGetUniformLocation(programId, spriteCenterName);
-        viewportAlphaLoc = GL20.glGetUniformLocation(programId, viewportAlphaName);
-        trackedEmitterBlockLoc = GL43.glGetProgramResourceIndex(programId, GL43.GL_SHADER_STORAGE_BLOCK, trackedEmittersName);
-        GL43.glShaderStorageBlockBinding(programId, trackedEmitterBlockLoc, trackedEmitterBinding);
+        ParticleShader.vertShaderPath = vertShaderPath;
+        ParticleShader.fragShaderPath = fragShaderPath;
+        for (int i = 0; i < variants.length; i++) {
+            if (variants[i] != null) {
+                Shader.delete(variants[i].programId);
+                variants[i] = null;
+            }
+        }
+        // Compile the variant with every feature right away so that shader errors show up on load
+        use(ALL_FEATURES);
+        GL20.glUseProgram(0);
+    }
+
+    /** Sets the projection matrix and current time for every variant. */
+    static void setFrameUniforms(FloatBuffer projection, float time) {
+        ParticleShader.projection = projection;
+        ParticleShader.time = time;
+        frameUniformsVersion++;
+    }
+
+    /** Binds the variant for {@code features}, compiling it if needed, and points the uniform locations at it. */
+    static void use(int features) {
+        Variant variant = variants[features];
+        if (variant == null) {
+            variant = variants[features] = compile(features);
+        }
+        GL20.glUseProgram(variant.programId);
+        programId = variant.programId;
+        projectionLoc = variant.projectionLoc;
+        timeLoc = variant.timeLoc;
+        useTextureLoc = variant.useTextureLoc;
+        texSamplerLoc = variant.texSamplerLoc;
+        texArraySamplerLoc = variant.texArraySamplerLoc;
+        useTextureArrayLoc = variant.useTextureArrayLoc;
+        textureSizeLoc = variant.textureSizeLoc;
+        spriteCenterLoc = variant.spriteCenterLoc;
+        viewportAlphaLoc = variant.viewportAlphaLoc;
+        if (variant.frameUniformsVersion != frameUniformsVersion && projection != null) {
+            GL20.glUniformMatrix4(projectionLoc, true, projection);
+            GL20.glUniform1f(timeLoc, time);
+            variant.frameUniformsVersion = frameUniformsVersion;
+        }
+    }
+
+    /** @return A {@code #define} for each flag set in {@code features}. */
+    static String defines(int features) {
+        StringBuilder defines = new StringBuilder();
+        for (int i = 0; i < featureNames.length; i++) {
+            if ((features & (1 << i)) != 0) {
+                defines.append("#define ").append(featureNames[i]).append("\n");
+            }
+        }
+        return defines.toString();
+    }
+
+    private static Variant compile(int features) {
+        Variant variant = new Variant();
+        int id = variant.programId = Shader.createProgram(vertShaderPath, fragShaderPath, -1, defines(features));
+        variant.projectionLoc = GL20.glGetUniformLocation(id, projectionName);
+        variant.timeLoc = GL20.glGetUniformLocation(id, timeName);
+        variant.useTextureLoc = GL20.glGetUniformLocation(id, useTextureName);
+        variant.texSamplerLoc = GL20.glGetUniformLocation(id, texSamplerName);
+        variant.texArraySamplerLoc = GL20.glGetUniformLocation(id, texArraySamplerName);
+        variant.useTextureArrayLoc = GL20.glGetUniformLocation(id, useTextureArrayName);
+        variant.textureSizeLoc = GL20.glGetUniformLocation(id, textureSizeName);
+        variant.spriteCenterLoc = GL20.glGetUniformLocation(id, spriteCenterName);
+        variant.viewportAlphaLoc = GL20.glGetUniformLocation(id, viewportAlphaName);
+        // Variants without TRACKED don't use the tracked emitter block, in which case it doesn't exist
+        trackedEmitterBlockLoc = GL43.glGetProgramResourceIndex(id, GL43.GL_SHADER_STORAGE_BLOCK, trackedEmittersName);
+        if (trackedEmitterBlockLoc != GL31.GL_INVALID_INDEX) {
+            GL43.glShaderStorageBlockBinding(id, trackedEmitterBlockLoc, trackedEmitterBinding);
+        }
+        burstBlockLoc = GL43.glGetProgramResourceIndex(id, GL43.GL_SHADER_STORAGE_BLOCK, burstsName);
+        GL43.glShaderStorageBlockBinding(id, burstBlockLoc, burstBinding);
+        // Only CULLED variants read particles from storage
+        particleRecordsBlockLoc = GL43.glGetProgramResourceIndex(id, GL43.GL_SHADER_STORAGE_BLOCK, particleRecordsName);
+        if (particleRecordsBlockLoc != GL31.GL_INVALID_INDEX) {
+            GL43.glShaderStorageBlockBinding(id, particleRecordsBlockLoc, particleRecordsBinding);
+        }
+        int spriteEntriesBlockLoc = GL43.glGetProgramResourceIndex(id, GL43.GL_SHADER_STORAGE_BLOCK, spriteEntriesName);
+        if (spriteEntriesBlockLoc != GL31.GL_INVALID_INDEX) {
+            GL43.glShaderStorageBlockBinding(id, spriteEntriesBlockLoc, spriteEntriesBinding);
+        }
+        // Samplers of different types may not share a texture unit, even if only one of them is used
+        GL20.glUseProgram(id);
+        GL20.glUniform1i(variant.texSamplerLoc, TEXTURE_UNIT);
+        GL20.glUniform1i(variant.texArraySamplerLoc, TEXTURE_ARRAY_UNIT);
+        return variant;
     }
 }
@@ -10,6 +10,8 @@ class ParticleStream<T extends IEmitter> {
     final Float deathTime;
     final Particles.StreamAction<T> doBeforeGenerating;
     final Particles.StreamAction<T> doWhenFinished;
+    /** Bursts scheduled this frame, if this stream's emitter is pipelined. */
+    private StreamPipeline.Job job;
 
     ParticleStream(
             T emitter,
@@ -26,13 +28,24 @@ class ParticleStream<T extends IEmitter> {
         this.doWhenFinished = doWhenFinished;
     }
 
-    void advance(float amount) {
+    void advance(float amount, StreamPipeline pipeline) {
         currentCount += amount * particlesPerSecond;
+        boolean pipelined = StreamPipeline.canPipeline(emitter);
+        if (pipelined && job == null) {
+            job = new StreamPipeline.Job();
+        }
         while (currentCount >= particlesPerBurst && (doBeforeGenerating == null || !(finished = !doBeforeGenerating.apply(emitter)))) {
-            Particles.burst(emitter, particlesPerBurst, currentIndex);
+            if (pipelined) {
+                job.schedule(emitter, particlesPerBurst, currentIndex);
+            } else {
+                Particles.burst(emitter, particlesPerBurst, currentIndex);
+            }
             currentIndex += particlesPerBurst;
             currentCount -= particlesPerBurst;
         }
+        if (pipelined) {
+            pipeline.submit(job);
+        }
     }
 
     void finish() {
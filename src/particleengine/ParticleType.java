@@ -9,8 +9,10 @@ import java.util.Comparator;
 
 /**
  * {@code layer} should be one of {@link CampaignEngineLayers} or {@link CombatEngineLayers}.
+ * If {@code spriteArray} isn't {@code null}, particles are drawn from that {@link SpriteArray}, with each burst's
+ * layer in its burst table entry, and {@code sprite} is {@code null}.
  */
-record ParticleType(SpriteAPI sprite, int sfactor, int dfactor, int blendMode, Object layer, LocationAPI campaignLocation) implements Comparable<ParticleType> {
+record ParticleType(SpriteAPI sprite, SpriteArray spriteArray, int sfactor, int dfactor, int blendMode, Object layer, LocationAPI campaignLocation) implements Comparable<ParticleType> {
 
     static final Comparator<SpriteAPI> spriteComparator = (a, b) -> {
         if (a == null && b != null) return -1;
@@ -47,6 +49,11 @@ record ParticleType(SpriteAPI sprite, int sfactor, int dfactor, int blendMode, O
         if (spriteComparison != 0) {
             return spriteComparison;
         }
+        if (spriteArray != otherType.spriteArray) {
+            if (spriteArray == null) return -1;
+            if (otherType.spriteArray == null) return 1;
+            return Integer.compare(spriteArray.id, otherType.spriteArray.id);
+        }
         if (sfactor != otherType.sfactor) return Integer.compare(sfactor, otherType.sfactor);
         if (dfactor != otherType.dfactor) return Integer.compare(dfactor, otherType.dfactor);
         if (blendMode != otherType.blendMode) return Integer.compare(blendMode, otherType.blendMode);
@@ -0,0 +1,306 @@
+package particleengine;
+
+import com.fs.starfarer.api.util.Misc;
+import org.lwjgl.util.vector.Vector2f;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Reusable cursor that writes particles straight into a burst's output buffer, as an allocation-free alternative to
+ * returning a new {@link ParticleData} per particle. Passed to {@link IEmitter#initParticle(int, ParticleWriter)};
+ * every property starts at the same default as in {@link ParticleData}, and only the properties that are set change.
+ * Properties are in the same units as {@link ParticleData}'s.
+ */
+@SuppressWarnings({"UnusedReturnValue", "unused"})
+public final class ParticleWriter {
+    private float offsetX, offsetY, velocityX, velocityY, accelerationX, accelerationY;
+    private float sinXAmp, sinXFreq, sinXPhase, sinYAmp, sinYFreq, sinYPhase;
+    private float facing, turnRate, turnAcceleration, revolutionRate, revolutionAcceleration;
+    private float sizeX, sizeY, growthRateX, growthRateY, growthAccelerationX, growthAccelerationY;
+    /** HSVA. */
+    private final float[] color = new float[4];
+    private float hueShift, saturationShift, colorValueShift, alphaShift;
+    private float fadeIn, fadeOut, life;
+
+    private ByteBuffer buffer;
+    private int burstId;
+    private float startTime;
+    /** Bitmask of the {@link ParticleShader} features used by every particle written since {@link #begin}. */
+    int features;
+    /** Longest life of any particle written since {@link #begin}. */
+    float maxLife;
+    /** Farthest any particle written since {@link #begin} gets from its emitter; see {@link #maxDistanceFromEmitter()}. */
+    float maxDistance;
+
+    ParticleWriter() {}
+
+    /** Starts writing a burst with id {@code burstId} to {@code buffer}, at its current position. */
+    void begin(ByteBuffer buffer, int burstId, float startTime) {
+        this.buffer = buffer;
+        this.burstId = burstId;
+        this.startTime = startTime;
+        features = 0;
+        maxLife = 0f;
+        maxDistance = 0f;
+    }
+
+    /** Adds the statistics of particles written by another writer to this one's. */
+    void merge(int features, float maxLife, float maxDistance) {
+        this.features |= features;
+        this.maxLife = Math.max(this.maxLife, maxLife);
+        this.maxDistance = Math.max(this.maxDistance, maxDistance);
+    }
+
+    /** Resets every property to its default, before the next particle is initialized. */
+    void reset() {
+        offsetX = offsetY = velocityX = velocityY = accelerationX = accelerationY = 0f;
+        sinXAmp = sinXFreq = sinXPhase = sinYAmp = sinYFreq = sinYPhase = 0f;
+        facing = turnRate = turnAcceleration = revolutionRate = revolutionAcceleration = 0f;
+        sizeX = sizeY = 25f;
+        growthRateX = growthRateY = growthAccelerationX = growthAccelerationY = 0f;
+        color[0] = 0f;
+        color[1] = color[2] = color[3] = 1f;
+        hueShift = saturationShift = colorValueShift = alphaShift = 0f;
+        fadeIn = fadeOut = 0f;
+        life = 1f;
+    }
+
+    /** Initial location of this particle relative to the parent emitter, along that emitter's axes. */
+    public ParticleWriter offset(float x, float y) {
+        offsetX = x;
+        offsetY = y;
+        return this;
+    }
+
+    /** Initial velocity of this particle along its parent emitter's axes. */
+    public ParticleWriter velocity(float x, float y) {
+        velocityX = x;
+        velocityY = y;
+        return this;
+    }
+
+    /** Acceleration of this particle along its parent emitter's axes. */
+    public ParticleWriter acceleration(float x, float y) {
+        accelerationX = x;
+        accelerationY = y;
+        return this;
+    }
+
+    /** Amplitude in world units, frequency in hertz, and phase in degrees of sinusoidal motion along the emitter's x-axis. */
+    public ParticleWriter sinusoidalXMotion(float amplitude, float frequency, float phase) {
+        sinXAmp = amplitude;
+        sinXFreq = frequency;
+        sinXPhase = phase;
+        return this;
+    }
+
+    /** Amplitude in world units, frequency in hertz, and phase in degrees of sinusoidal motion along the emitter's y-axis. */
+    public ParticleWriter sinusoidalYMotion(float amplitude, float frequency, float phase) {
+        sinYAmp = amplitude;
+        sinYFreq = frequency;
+        sinYPhase = phase;
+        return this;
+    }
+
+    /** Initial facing angle, in degrees. {@code 0} degrees is to the right. */
+    public ParticleWriter facing(float facing) {
+        this.facing = facing;
+        return this;
+    }
+
+    /** Initial rotation rate about the particle's center point. */
+    public ParticleWriter turnRate(float turnRate) {
+        this.turnRate = turnRate;
+        return this;
+    }
+
+    /** Rotation acceleration about the particle's center point. */
+    public ParticleWriter turnAcceleration(float turnAcceleration) {
+        this.turnAcceleration = turnAcceleration;
+        return this;
+    }
+
+    /** Initial revolution rate about the emitter's location. */
+    public ParticleWriter revolutionRate(float revolutionRate) {
+        this.revolutionRate = revolutionRate;
+        return this;
+    }
+
+    /** Revolution acceleration about the emitter's location. */
+    public ParticleWriter revolutionAcceleration(float revolutionAcceleration) {
+        this.revolutionAcceleration = revolutionAcceleration;
+        return this;
+    }
+
+    /** Width and height, in world units. */
+    public ParticleWriter size(float x, float y) {
+        sizeX = x;
+        sizeY = y;
+        return this;
+    }
+
+    public ParticleWriter growthRate(float x, float y) {
+        growthRateX = x;
+        growthRateY = y;
+        return this;
+    }
+
+    public ParticleWriter growthAcceleration(float x, float y) {
+        growthAccelerationX = x;
+        growthAccelerationY = y;
+        return this;
+    }
+
+    /** Initial color, with every channel between {@code 0} and {@code 1}. */
+    public ParticleWriter color(float r, float g, float b, float a) {
+        Utils.toHSVA(r, g, b, a, color);
+        return this;
+    }
+
+    /** Initial color, with hue in degrees and the other channels between {@code 0} and {@code 1}. */
+    public ParticleWriter colorHSVA(float h, float s, float v, float a) {
+        color[0] = h;
+        color[1] = s;
+        color[2] = v;
+        color[3] = a;
+        return this;
+    }
+
+    /** Hue shift amount, in degrees per second. */
+    public ParticleWriter hueShift(float hueShift) {
+        this.hueShift = hueShift;
+        return this;
+    }
+
+    /** Saturation shift amount per second. Saturation is defined between {@code 0} and {@code 1}. */
+    public ParticleWriter saturationShift(float saturationShift) {
+        this.saturationShift = saturationShift;
+        return this;
+    }
+
+    /** Color value shift amount per second. Color value is defined between {@code 0} and {@code 1}. */
+    public ParticleWriter colorValueShift(float colorValueShift) {
+        this.colorValueShift = colorValueShift;
+        return this;
+    }
+
+    /** Alpha shift amount per second. Alpha is defined between {@code 0} and {@code 1}. */
+    public ParticleWriter alphaShift(float alphaShift) {
+        this.alphaShift = alphaShift;
+        return this;
+    }
+
+    /** Fade in and fade out times, in seconds. */
+    public ParticleWriter fadeTime(float fadeIn, float fadeOut) {
+        this.fadeIn = fadeIn;
+        this.fadeOut = fadeOut;
+        return this;
+    }
+
+    /** Total duration the particle will last for, in seconds. */
+    public ParticleWriter life(float life) {
+        this.life = life;
+        return this;
+    }
+
+    /** @return The current particle's properties, as a new {@link ParticleData}. */
+    ParticleData toParticleData() {
+        return new ParticleData()
+                .offset(new Vector2f(offsetX, offsetY))
+                .velocity(new Vector2f(velocityX, velocityY))
+                .acceleration(new Vector2f(accelerationX, accelerationY))
+                .sinusoidalXMotion(sinXAmp, sinXFreq, sinXPhase)
+                .sinusoidalYMotion(sinYAmp, sinYFreq, sinYPhase)
+                .facing(facing)
+                .turnRate(turnRate)
+                .turnAcceleration(turnAcceleration)
+                .revolutionRate(revolutionRate)
+                .revolutionAcceleration(revolutionAcceleration)
+                .size(sizeX, sizeY)
+                .growthRate(growthRateX, growthRateY)
+                .growthAcceleration(growthAccelerationX, growthAccelerationY)
+                .colorHSVA(color.clone())
+                .hueShift(hueShift)
+                .saturationShift(saturationShift)
+                .colorValueShift(colorValueShift)
+                .alphaShift(alphaShift)
+                .fadeTime(fadeIn, fadeOut)
+                .life(life);
+    }
+
+    /**
+     * Writes the current particle to the buffer in the packed layout described by
+     * {@link Particles#VERTEX_ATTRIB_SIZES}, with absolute puts, and advances the buffer by one particle.
+     * If the particle's hue and saturation don't change, its color is stored as RGB, which is cheaper to shade.
+     */
+    void commit() {
+        if (sinXAmp != 0f || sinYAmp != 0f) features |= ParticleShader.SINUSOID;
+        if (revolutionRate != 0f || revolutionAcceleration != 0f) features |= ParticleShader.REVOLUTION;
+        if (growthRateX != 0f || growthRateY != 0f || growthAccelerationX != 0f || growthAccelerationY != 0f) {
+            features |= ParticleShader.GROWTH;
+        }
+        boolean isRGB = hueShift == 0f && saturationShift == 0f;
+        if (!isRGB) features |= ParticleShader.HSV;
+        maxLife = Math.max(maxLife, life);
+        maxDistance = Math.max(maxDistance, maxDistanceFromEmitter());
+
+        ByteBuffer b = buffer;
+        int i = b.position();
+        b.putInt(i, isRGB ? burstId | ParticleShader.RGB_FLAG : burstId)
+            .putFloat(i + 4, offsetX)
+            .putFloat(i + 8, offsetY)
+            .putFloat(i + 12, velocityX)
+            .putFloat(i + 16, velocityY)
+            .putFloat(i + 20, accelerationX)
+            .putFloat(i + 24, accelerationY);
+        putHalf4(b, i + 28, sinXAmp, sinXFreq * ParticleData.twoPi, sinXPhase * Misc.RAD_PER_DEG, 0f);
+        putHalf4(b, i + 36, sinYAmp, sinYFreq * ParticleData.twoPi, sinYPhase * Misc.RAD_PER_DEG, 0f);
+        putHalf4(b, i + 44, facing * Misc.RAD_PER_DEG, turnRate * Misc.RAD_PER_DEG, turnAcceleration * Misc.RAD_PER_DEG, 0f);
+        b.putShort(i + 52, Utils.toHalf(revolutionRate * Misc.RAD_PER_DEG))
+            .putShort(i + 54, Utils.toHalf(revolutionAcceleration * Misc.RAD_PER_DEG));
+        putHalf4(b, i + 56, sizeX, growthRateX, growthAccelerationX, 0f);
+        putHalf4(b, i + 64, sizeY, growthRateY, growthAccelerationY, 0f);
+        if (isRGB) {
+            // Same conversion as the vertex shader's to_rgba, at full value
+            float h = color[0] / 360f, s = Math.max(0f, Math.min(1f, color[1]));
+            float r = 1f - s + s * hueChannel(h + 1f), g = 1f - s + s * hueChannel(h + 2f / 3f), bl = 1f - s + s * hueChannel(h + 1f / 3f);
+            putHalf4(b, i + 72, r, g, bl, color[3]);
+            putHalf4(b, i + 80, color[2], colorValueShift, alphaShift, 0f);
+        } else {
+            putHalf4(b, i + 72, color[0], color[1], color[2], color[3]);
+            putHalf4(b, i + 80, hueShift, saturationShift, colorValueShift, alphaShift);
+        }
+        b.putShort(i + 88, Utils.toHalf(fadeIn))
+            .putShort(i + 90, Utils.toHalf(fadeOut))
+            .putFloat(i + 92, startTime)
+            .putFloat(i + 96, startTime + life);
+        b.position(i + Particles.BYTES_PER_PARTICLE);
+    }
+
+    /**
+     * @return An upper bound on how far any part of the current particle gets from its emitter's location over its
+     * life, assuming its sprite's center is inside the sprite. Turning, revolution, and the emitter's facing only
+     * rotate the particle about the emitter, so they don't affect the bound.
+     */
+    float maxDistanceFromEmitter() {
+        float t = life, halfTSq = 0.5f * life * life;
+        float travel = (float) (Math.hypot(offsetX, offsetY) + Math.hypot(velocityX, velocityY) * t + Math.hypot(accelerationX, accelerationY) * halfTSq)
+                + 2f * (Math.abs(sinXAmp) + Math.abs(sinYAmp));
+        float maxSizeX = Math.abs(sizeX) + Math.abs(growthRateX) * t + Math.abs(growthAccelerationX) * halfTSq;
+        float maxSizeY = Math.abs(sizeY) + Math.abs(growthRateY) * t + Math.abs(growthAccelerationY) * halfTSq;
+        return travel + (float) Math.hypot(maxSizeX, maxSizeY);
+    }
+
+    /** One channel of a fully saturated color with hue {@code h}, in turns, offset as in the vertex shader. */
+    private static float hueChannel(float h) {
+        float p = Math.abs((h - (float) Math.floor(h)) * 6f - 3f);
+        return Math.max(0f, Math.min(1f, p - 1f));
+    }
+
+    private static void putHalf4(ByteBuffer buffer, int index, float x, float y, float z, float w) {
+        buffer.putShort(index, Utils.toHalf(x))
+            .putShort(index + 2, Utils.toHalf(y))
+            .putShort(index + 4, Utils.toHalf(z))
+            .putShort(index + 6, Utils.toHalf(w));
+    }
+}
@@ -13,7 +13,6 @@ import org.jetbrains.annotations.Nullable;
 import org.lwjgl.opengl.*;
 import org.lwjgl.util.vector.Vector2f;
 
-import java.nio.FloatBuffer;
 import java.util.*;
 
 /**
@@ -24,42 +23,62 @@ import java.util.*;
  */
 @SuppressWarnings("unused")
 public class Particles extends BaseCombatLayeredRenderingPlugin implements EveryFrameScript, CurrentLocationChangedListener {
+    static final int FLOAT_SIZE = 4;
     /**
-     * Total number of floats passed into vertex shader per particle
+     * Total number of bytes passed into vertex shader per particle
      */
-    static final int FLOATS_PER_PARTICLE;
-    static final int FLOAT_SIZE = 4;
     static final int BYTES_PER_PARTICLE;
     /**
-     * Size in number of floats per attribute passed into the vertex shader, in layout order.
+     * Number of components per attribute passed into the vertex shader, in layout order.
+     * Attributes whose shader inputs have 3 components are padded to 4 to keep every attribute 4-byte aligned.
      */
     static final int[] VERTEX_ATTRIB_SIZES = new int[]{
-            1,   // index of emitter in tracker, if tracked
-            // use for particles that should dynamically
-            // follow their emitter's movements
-            // will be -1 if not tracking any emitter
-            4,   // position and emitter position
-            1,   // emitter forward direction
+            1,   // id of the particle's burst in the BurstTable, which holds the emitter's position, forward
+            // direction and tracker index at generation time
+            2,   // position
             4,   // velocity and acceleration
-            3,   // sinusoidal motion in x
-            3,   // sinusoidal motion in y
-            3,   // angular data
+            4,   // sinusoidal motion in x
+            4,   // sinusoidal motion in y
+            4,   // angular data
             2,   // radial revolution data
-            3,   // x-size data
-            3,   // y-size data
+            4,   // x-size data
+            4,   // y-size data
             4,   // starting color
             4,   // color shift
-            4    // fade and time data
+            2,   // fade data
+            2    // time data
     };
+    /**
+     * Type of each attribute's components, in layout order. Positions, velocities, and times need full precision;
+     * everything else is stored as half floats. {@code GL_INT} attributes are integer inputs in the vertex shader.
+     */
+    static final int[] VERTEX_ATTRIB_TYPES = new int[]{
+            GL11.GL_INT,
+            GL11.GL_FLOAT,
+            GL11.GL_FLOAT,
+            GL30.GL_HALF_FLOAT,
+            GL30.GL_HALF_FLOAT,
+            GL30.GL_HALF_FLOAT,
+            GL30.GL_HALF_FLOAT,
+            GL30.GL_HALF_FLOAT,
+            GL30.GL_HALF_FLOAT,
+            GL30.GL_HALF_FLOAT,
+            GL30.GL_HALF_FLOAT,
+            GL30.GL_HALF_FLOAT,
+            GL11.GL_FLOAT
+    };
+    /**
+     * Offset of each attribute, in bytes, from the start of a particle.
+     */
+    static final int[] VERTEX_ATTRIB_OFFSETS = new int[VERTEX_ATTRIB_SIZES.length];
 
     static {
-        int count = 0;
-        for (int size : VERTEX_ATTRIB_SIZES) {
-            count += size;
+        int offset = 0;
+        for (int i = 0; i < VERTEX_ATTRIB_SIZES.length; i++) {
+            VERTEX_ATTRIB_OFFSETS[i] = offset;
+            offset += VERTEX_ATTRIB_SIZES[i] * (VERTEX_ATTRIB_TYPES[i] == GL30.GL_HALF_FLOAT ? 2 : 4);
         }
-        FLOATS_PER_PARTICLE = count;
-
-        BYTES_PER_PARTICLE = FLOATS_PER_PARTICLE * FLOAT_SIZE;
+        BYTES_PER_PARTICLE = offset;
     }
 
     float currentCampaignTime = 0f, currentCombatTime = 0f;
@@ -67,13 +86,24 @@ public class Particles extends BaseCombatLayeredRenderingPlugin implements Every
     private static final String TITLE_SCREEN_STATE = "Title Screen State";
     // Object is CombatEngineLayers or CampaignEngineLayers
     final Map<Object, SortedMap<ParticleType, Pair<ParticleAllocator, ParticleRenderer>>> particleMap = new HashMap<>();
-    private final Queue<DeferredAction> combatDoLaterQueue = new PriorityQueue<>();
-    private final Queue<DeferredAction> campaignDoLaterQueue = new PriorityQueue<>();
+    /** Deferred actions and events, see {@link #doLater} and {@link #doAtTime}. */
+    private final TimingWheel combatEvents = new TimingWheel(), campaignEvents = new TimingWheel();
     private final Set<ParticleStream<? extends IEmitter>> combatParticleStreams = new HashSet<>();
     private final Set<ParticleStream<? extends IEmitter>> campaignParticleStreams = new HashSet<>();
     private final Map<IEmitter, CombatEntityAPI> anchorPoints = new HashMap<>();
     private EmitterBufferHandler trackedEmitterHandler = new EmitterBufferHandler();
+    private BurstTable combatBursts = new BurstTable(), campaignBursts = new BurstTable();
+    /** Staging space for bursts generated in each mode, reclaimed each time that mode's allocators are flushed. */
+    private final FrameArena combatArena = new FrameArena(), campaignArena = new FrameArena();
+    /** Stream bursts being generated on worker threads in each mode, staged when that mode's allocators are flushed. */
+    private final StreamPipeline combatPipeline = new StreamPipeline(), campaignPipeline = new StreamPipeline();
     private boolean updatedTrackedEmittersThisFrame = false;
+    /** Allocators with bursts that haven't been uploaded yet. */
+    private final Set<ParticleAllocator> allocatorsToFlush = new LinkedHashSet<>();
+    /** Allocators whose dead clusters are being reclaimed, copied out of {@link #particleMap} since that may change. */
+    private final List<ParticleAllocator> allocatorsToSweep = new ArrayList<>();
+    /** Renderers to draw in the layer currently being rendered, in draw order. */
+    final List<ParticleRenderer> renderQueue = new ArrayList<>();
 
     @Override
     public void reportCurrentLocationChanged(LocationAPI prev, LocationAPI curr) {
@@ -90,21 +120,12 @@ public class Particles extends BaseCombatLayeredRenderingPlugin implements Every
         void perform();
     }
 
-    private record DeferredAction(Action action, float time) implements Comparable<DeferredAction> {
-        @Override
-        public int compareTo(DeferredAction o) {
-            return Float.compare(time, o.time);
-        }
-    }
-
     static void doLater(Action action, float delay) {
         Particles instance = getInstance();
         if (instance == null) {
             return;
         }
-        var queue = isCombat() ? instance.combatDoLaterQueue : instance.campaignDoLaterQueue;
-
-        queue.add(new DeferredAction(action, getCurrentTime() + delay));
+        (isCombat() ? instance.combatEvents : instance.campaignEvents).schedule(getCurrentTime() + delay, action);
     }
 
     static void doAtTime(Action action, float time) {
@@ -112,51 +133,65 @@ public class Particles extends BaseCombatLayeredRenderingPlugin implements Every
         if (instance == null) {
             return;
         }
+        (isCombat() ? instance.combatEvents : instance.campaignEvents).schedule(time, action);
+    }
 
-        var queue = isCombat() ? instance.combatDoLaterQueue : instance.campaignDoLaterQueue;
-
-        queue.add(new DeferredAction(action, time));
+    /**
+     * Calls {@code handler.onEvent(payload, arg)} at time {@code time}. Unlike {@link #doAtTime(Action, float)}, this
+     * doesn't need a new lambda per call.
+     */
+    static void doAtTime(TimingWheel.Handler handler, Object payload, int arg, float time) {
+        Particles instance = getInstance();
+        if (instance == null) {
+            return;
+        }
+        (isCombat() ? instance.combatEvents : instance.campaignEvents).schedule(time, handler, payload, arg);
     }
 
     static void reset() {
         var instance = getInstance();
         if (instance == null) return;
         instance.clearUsedBuffers(false);
-        instance.combatDoLaterQueue.clear();
+        instance.combatEvents.clear();
         instance.campaignParticleStreams.clear();
         instance.combatParticleStreams.clear();
         instance.anchorPoints.clear();
-        instance.campaignDoLaterQueue.clear();
+        instance.campaignEvents.clear();
+        instance.trackedEmitterHandler.delete();
         instance.trackedEmitterHandler = new EmitterBufferHandler();
+        instance.combatBursts.delete();
+        instance.campaignBursts.delete();
+        instance.combatBursts = new BurstTable();
+        instance.campaignBursts = new BurstTable();
+        instance.combatArena.reset();
+        instance.campaignArena.reset();
+        instance.combatPipeline.discard();
+        instance.campaignPipeline.discard();
     }
 
     void clearUsedBuffers(boolean combatOnly) {
-        List<Integer> usedVAOs = new ArrayList<>();
-        List<Integer> usedVBOs = new ArrayList<>();
         for (var iterator = particleMap.entrySet().iterator(); iterator.hasNext(); ) {
             var entry = iterator.next();
             var key = entry.getKey();
             if (combatOnly && !(key instanceof CombatEngineLayers)) continue;
             for (var entry2 : entry.getValue().entrySet()) {
-                var allocator = entry2.getValue().one;
-                usedVAOs.add(allocator.getVAO());
-                usedVBOs.add(allocator.getVBO());
+                entry2.getValue().one.delete();
+                allocatorsToFlush.remove(entry2.getValue().one);
             }
             iterator.remove();
         }
-        for (int vao : usedVAOs) {
-            GL30.glDeleteVertexArrays(vao);
-        }
-        for (int vbo : usedVBOs) {
-            GL15.glDeleteBuffers(vbo);
-        }
     }
 
     void resetCombatData() {
         clearUsedBuffers(true);
         combatParticleStreams.clear();
         anchorPoints.clear();
-        combatDoLaterQueue.clear();
+        combatEvents.clear();
+        // Pending frees were in the combat queue
+        combatBursts.delete();
+        combatBursts = new BurstTable();
+        combatArena.reset();
+        combatPipeline.discard();
     }
 
     @Override
@@ -194,14 +229,13 @@ public class Particles extends BaseCombatLayeredRenderingPlugin implements Every
             return;
         }
 
-        var queue = isCombat ? combatDoLaterQueue : campaignDoLaterQueue;
         float currentTime = getCurrentTime();
-        DeferredAction firstItem;
-        while ((firstItem = queue.peek()) != null && firstItem.time <= currentTime) {
-            queue.poll();
-            firstItem.action.perform();
-        }
+        (isCombat ? combatEvents : campaignEvents).advance(currentTime);
+        sweepAllocators(isCombat, currentTime);
 
+        // Normally already done when particles were last rendered
+        StreamPipeline pipeline = isCombat ? combatPipeline : campaignPipeline;
+        pipeline.complete();
         var streams = isCombat ? combatParticleStreams : campaignParticleStreams;
         for (var iterator = streams.iterator(); iterator.hasNext(); ) {
             var particleStream = iterator.next();
@@ -222,7 +256,7 @@ public class Particles extends BaseCombatLayeredRenderingPlugin implements Every
                 particleStream.finish();
                 iterator.remove();
             } else {
-                particleStream.advance(amount);
+                particleStream.advance(amount, pipeline);
             }
         }
 
@@ -246,27 +280,33 @@ public class Particles extends BaseCombatLayeredRenderingPlugin implements Every
     }
 
     void preRender(ViewportAPI viewport) {
-        GL20.glUseProgram(ParticleShader.programId);
+        flushAllocators(isCombat());
         GL11.glEnable(GL11.GL_BLEND);
         if (!updatedTrackedEmittersThisFrame) {
             trackedEmitterHandler.updateTrackedEmitters(currentCampaignTime, currentCombatTime);
-            fillSSBO();
+            trackedEmitterHandler.upload();
+            if (ParticleAllocator.uploadRing != null) {
+                // Bursts staged in the other game state may still be waiting in the ring
+                ParticleAllocator.uploadRing.fence(Math.min(combatArena.oldestRingReservation(), campaignArena.oldestRingReservation()));
+            }
             updatedTrackedEmittersThisFrame = true;
         }
-        GL20.glUniformMatrix4(ParticleShader.projectionLoc, true, Utils.getProjectionMatrix(viewport));
-        GL20.glUniform1f(ParticleShader.timeLoc, getCurrentTime());
-        GL15.glBindBuffer(GL43.GL_SHADER_STORAGE_BUFFER, trackedEmitterHandler.getSSBOBufferIndex());
+        ParticleShader.setFrameUniforms(Utils.getProjectionMatrix(viewport), getCurrentTime());
+        trackedEmitterHandler.bind();
+        (isCombat() ? combatBursts : campaignBursts).uploadAndBind();
     }
 
     @Override
     public void render(CombatEngineLayers layer, ViewportAPI viewport) {
         if (particleMap.containsKey(layer)) {
             preRender(viewport);
+            renderQueue.clear();
             for (Pair<ParticleAllocator, ParticleRenderer> p : particleMap.get(layer).values()) {
                 if (p.two.layer().equals(layer)) {
-                    p.two.render(viewport);
+                    renderQueue.add(p.two);
                 }
             }
+            ParticleRenderer.renderAll(renderQueue, viewport);
             postRender();
         }
     }
@@ -278,13 +318,43 @@ public class Particles extends BaseCombatLayeredRenderingPlugin implements Every
         GL20.glUseProgram(0);
     }
 
-    private void fillSSBO() {
-        GL15.glBindBuffer(GL43.GL_SHADER_STORAGE_BUFFER, trackedEmitterHandler.getSSBOBufferIndex());
-        FloatBuffer ubo = trackedEmitterHandler.locationsToFloatBuffer();
-        ubo.limit(4 * trackedEmitterHandler.getHighestFilledPosition() + 4);
-        GL15.glBufferSubData(GL43.GL_SHADER_STORAGE_BUFFER, 0, ubo);
-        ubo.limit(ubo.capacity());
-        GL15.glBindBuffer(GL43.GL_SHADER_STORAGE_BUFFER, 0);
+    /** Reclaims the dead clusters of every allocator in combat layers if {@code isCombat}, otherwise in campaign layers. */
+    private void sweepAllocators(boolean isCombat, float currentTime) {
+        for (var entry : particleMap.entrySet()) {
+            if ((entry.getKey() instanceof CombatEngineLayers) != isCombat) continue;
+            for (var pair : entry.getValue().values()) {
+                allocatorsToSweep.add(pair.one);
+            }
+        }
+        for (ParticleAllocator allocator : allocatorsToSweep) {
+            allocator.sweepDeadClusters(currentTime);
+        }
+        allocatorsToSweep.clear();
+    }
+
+    /** Uploads the staged bursts of every allocator in combat layers if {@code isCombat}, otherwise in campaign layers. */
+    private void flushAllocators(boolean isCombat) {
+        (isCombat ? combatPipeline : campaignPipeline).complete();
+        for (var iterator = allocatorsToFlush.iterator(); iterator.hasNext(); ) {
+            ParticleAllocator allocator = iterator.next();
+            if ((allocator.type.layer() instanceof CombatEngineLayers) != isCombat) continue;
+            allocator.flush();
+            iterator.remove();
+        }
+        // Everything staged in this mode has now been uploaded
+        (isCombat ? combatArena : campaignArena).reset();
+        if (ParticleAllocator.gpuGenerator != null) {
+            ParticleAllocator.gpuGenerator.finishFrame();
+        }
+    }
+
+    /** Marks {@code allocator} as having staged bursts to upload before the next render. */
+    static void scheduleFlush(ParticleAllocator allocator) {
+        Particles instance = getInstance();
+        if (instance == null) {
+            return;
+        }
+        instance.allocatorsToFlush.add(allocator);
     }
 
     static void removeType(ParticleType type) {
@@ -303,11 +373,8 @@ public class Particles extends BaseCombatLayeredRenderingPlugin implements Every
             return;
         }
 
-        ParticleAllocator allocator = pair.one;
-        ParticleRenderer renderer = pair.two;
-
-        GL15.glDeleteBuffers(allocator.getVBO());
-        GL30.glDeleteVertexArrays(allocator.getVAO());
+        pair.one.delete();
+        instance.allocatorsToFlush.remove(pair.one);
 
         subMap.remove(type);
 
@@ -316,6 +383,20 @@ public class Particles extends BaseCombatLayeredRenderingPlugin implements Every
         }
     }
 
+    /** @return The arena that bursts generated in combat, if {@code isCombat}, or in the campaign are staged in. */
+    static FrameArena getFrameArena(boolean isCombat) {
+        Particles instance = getInstance();
+        if (instance == null) return null;
+        return isCombat ? instance.combatArena : instance.campaignArena;
+    }
+
+    /** @return The burst table for the current game state, or {@code null} if there is no {@code Particles} instance. */
+    static BurstTable getBurstTable() {
+        Particles instance = getInstance();
+        if (instance == null) return null;
+        return isCombat() ? instance.combatBursts : instance.campaignBursts;
+    }
+
     static EmitterBufferHandler getTrackedEmitterHandler() {
         Particles instance = getInstance();
         return instance == null ? null : instance.trackedEmitterHandler;
@@ -506,28 +587,40 @@ public class Particles extends BaseCombatLayeredRenderingPlugin implements Every
         }
 
         boolean isCombat = isCombat();
-        ParticleAllocator allocator;
-        ParticleType type = new ParticleType(
-                emitter.getSprite(),
+        getAllocator(getParticleType(emitter, isCombat))
+                .allocateParticles(emitter, count, startIndex, getCurrentTime(), getViewport(isCombat), isCombat);
+        return true;
+    }
+
+    static ParticleType getParticleType(IEmitter emitter, boolean isCombat) {
+        SpriteAPI sprite = emitter.getSprite();
+        SpriteArray.Entry spriteEntry = SpriteArray.forSprite(sprite);
+        return new ParticleType(
+                spriteEntry == null ? sprite : null,
+                spriteEntry == null ? null : spriteEntry.array(),
                 emitter.getBlendSourceFactor(),
                 emitter.getBlendDestinationFactor(),
                 emitter.getBlendFunc(),
                 isCombat ? emitter.getLayer() : emitter.getCampaignLayer(),
                 isCombat || emitter.isAlwaysRenderInCampaign() ? null : Utils.getPlayerContainingLocation());
+    }
+
+    /** @return The allocator for particles of type {@code type}, creating it and its renderer if needed. */
+    static ParticleAllocator getAllocator(ParticleType type) {
+        Particles instance = getInstance();
         SortedMap<ParticleType, Pair<ParticleAllocator, ParticleRenderer>> subMap
                 = instance.particleMap.computeIfAbsent(type.layer(), k -> new TreeMap<>());
         Pair<ParticleAllocator, ParticleRenderer> pair = subMap.get(type);
-        ParticleRenderer renderer;
         if (pair == null) {
-            allocator = new ParticleAllocator(type);
-            renderer = new ParticleRenderer(isCombat ? emitter.getLayer() : emitter.getCampaignLayer(), allocator, instance);
-            subMap.put(type, new Pair<>(allocator, renderer));
-        } else {
-            allocator = pair.one;
+            ParticleAllocator allocator = new ParticleAllocator(type);
+            subMap.put(type, new Pair<>(allocator, new ParticleRenderer(type.layer(), allocator, instance)));
+            return allocator;
         }
+        return pair.one;
+    }
 
-        allocator.allocateParticles(emitter, count, startIndex, getCurrentTime(), isCombat ? Global.getCombatEngine().getViewport() : Global.getSector().getViewport(), isCombat);
-        return true;
+    static ViewportAPI getViewport(boolean isCombat) {
+        return isCombat ? Global.getCombatEngine().getViewport() : Global.getSector().getViewport();
     }
 
     /**
@@ -583,7 +676,9 @@ public class Particles extends BaseCombatLayeredRenderingPlugin implements Every
      * @param maxDuration        Maximum amount of time this particle stream should last. If negative, the stream
      *                           will not naturally expire.
      * @param doBeforeGenerating Custom function that's called immediately before each particle generation sequence in this stream.
-     *                           Returning {@code false} will end the stream.
+     *                           Returning {@code false} will end the stream. Always called on the main thread. If
+     *                           the emitter is {@link IEmitter#isThreadSafe() thread-safe}, its particles may be
+     *                           generated on another thread, from a copy of the emitter taken right after this returns.
      * @param doWhenFinished     Custom function that's called when the stream expires, which can occur either naturally, if
      *                           doBeforeGenerating returns {@code false}, or if the stream's emitter's anchor point is removed from play.
      *                           The return value is not used.
@@ -619,7 +714,7 @@ public class Particles extends BaseCombatLayeredRenderingPlugin implements Every
         return ParticleEngineModPlugin.particlesInstance;
     }
 
-    private static float getCurrentTime() {
+    static float getCurrentTime() {
         var instance = getInstance();
         if (instance == null) return 0f;
         return isCombat() ? instance.currentCombatTime : instance.currentCampaignTime;
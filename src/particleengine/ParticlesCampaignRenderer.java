@@ -24,6 +24,7 @@ public class ParticlesCampaignRenderer implements LayeredRenderable<CampaignEngi
     public void render(CampaignEngineLayers layer, CombatViewport viewport) {
         if (owner.particleMap.containsKey(layer)) {
             owner.preRender(viewport);
+            owner.renderQueue.clear();
             for (var entry : owner.particleMap.get(layer).entrySet()) {
                 var loc = entry.getKey().campaignLocation();
                 if (loc != null && !Objects.equals(loc.getId(), Utils.getPlayerContainingLocation().getId())) {
@@ -32,9 +33,10 @@ public class ParticlesCampaignRenderer implements LayeredRenderable<CampaignEngi
 
                 var p = entry.getValue();
                 if (p.two.layer().equals(layer)) {
-                    p.two.render(viewport);
+                    owner.renderQueue.add(p.two);
                 }
             }
+            ParticleRenderer.renderAll(owner.renderQueue, viewport);
             owner.postRender();
         }
     }
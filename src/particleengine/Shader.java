@@ -2,11 +2,25 @@ package particleengine;
 
 import org.lwjgl.opengl.GL11;
 import org.lwjgl.opengl.GL20;
+import org.lwjgl.opengl.GL43;
 
 import java.io.IOException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 abstract class Shader {
+    /** {@code #include "path"} on its own line is replaced by the contents of the file at {@code path}. */
+    private static final Pattern includePattern = Pattern.compile("(?m)^#include \"(.+)\"$");
+
     protected static int createProgram(String vertShaderPath, String fragShaderPath, int existingProgramId) {
+        return createProgram(vertShaderPath, fragShaderPath, existingProgramId, "");
+    }
+
+    /**
+     * @param defines Inserted into both shaders right after their {@code #version} line, e.g. a list of
+     *                {@code #define}s selecting which features to compile.
+     */
+    protected static int createProgram(String vertShaderPath, String fragShaderPath, int existingProgramId, String defines) {
         try {
 
             if (existingProgramId > -1) {
@@ -14,8 +28,8 @@ abstract class Shader {
             }
 
             int programId = GL20.glCreateProgram();
-            int vertShaderId = attachShader(GL20.GL_VERTEX_SHADER, programId, vertShaderPath);
-            int fragShaderId = attachShader(GL20.GL_FRAGMENT_SHADER, programId, fragShaderPath);
+            int vertShaderId = attachShader(GL20.GL_VERTEX_SHADER, programId, vertShaderPath, defines);
+            int fragShaderId = attachShader(GL20.GL_FRAGMENT_SHADER, programId, fragShaderPath, defines);
             GL20.glLinkProgram(programId);
             if (GL20.glGetProgrami(programId, GL20.GL_LINK_STATUS) == GL11.GL_FALSE) {
                 System.err.println(GL20.glGetProgramInfoLog(programId, GL20.GL_INFO_LOG_LENGTH));
@@ -33,13 +47,49 @@ abstract class Shader {
         }
     }
 
+    /** @param defines Inserted right after the shader's {@code #version} line. */
+    protected static int createComputeProgram(String compShaderPath, String defines) {
+        try {
+            int programId = GL20.glCreateProgram();
+            int compShaderId = attachShader(GL43.GL_COMPUTE_SHADER, programId, compShaderPath, defines);
+            GL20.glLinkProgram(programId);
+            if (GL20.glGetProgrami(programId, GL20.GL_LINK_STATUS) == GL11.GL_FALSE) {
+                throw new RuntimeException("(Particle Engine) Failure to link compute shader program: "
+                        + GL20.glGetProgramInfoLog(programId, GL20.glGetProgrami(programId, GL20.GL_INFO_LOG_LENGTH)));
+            }
+            GL20.glDetachShader(programId, compShaderId);
+            GL20.glDeleteShader(compShaderId);
+            return programId;
+        }
+        catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
     protected static void delete(int id) {
         GL20.glDeleteProgram(id);
     }
 
     protected static int attachShader(int target, int program, String filePath) throws IOException {
+        return attachShader(target, program, filePath, "");
+    }
+
+    protected static int attachShader(int target, int program, String filePath, String defines) throws IOException {
         int id = GL20.glCreateShader(target);
-        GL20.glShaderSource(id, Utils.readFile(filePath));
+        String source = Utils.readFile(filePath);
+        Matcher includes = includePattern.matcher(source);
+        StringBuilder expanded = new StringBuilder();
+        while (includes.find()) {
+            includes.appendReplacement(expanded, Matcher.quoteReplacement(Utils.readFile(includes.group(1))));
+        }
+        includes.appendTail(expanded);
+        source = expanded.toString();
+        if (!defines.isEmpty()) {
+            // #version has to stay the first line
+            int versionEnd = source.startsWith("#version") ? source.indexOf('\n') + 1 : 0;
+            source = source.substring(0, versionEnd) + defines + source.substring(versionEnd);
+        }
+        GL20.glShaderSource(id, source);
         GL20.glCompileShader(id);
 
         if (GL20.glGetShaderi(id, GL20.GL_COMPILE_STATUS) == GL11.GL_FALSE) {
@@ -0,0 +1,154 @@
+package particleengine;
+
+import org.lwjgl.BufferUtils;
+import org.lwjgl.opengl.*;
+
+import java.nio.IntBuffer;
+import java.util.BitSet;
+
+/**
+ * Single vertex buffer, split into fixed-size slots, that every {@link ParticleChunk} lives in when
+ * {@link ParticleEngineModPlugin#sharedParticleBuffer} is set. Since all particle types then share one buffer and one
+ * vertex format, every draw in a layer can go through the same vertex array, and consecutive draws that share GL state
+ * can be merged into a single {@code glMultiDrawArraysIndirect} call using each chunk's slot as its base instance.
+ */
+class SharedParticleBuffer {
+    /** In number of particles. */
+    static final int SLOT_CAPACITY = 2048;
+    private static final int INITIAL_SLOTS = 16;
+    /** Number of ints in a {@code DrawArraysIndirectCommand}. */
+    private static final int COMMAND_SIZE = 4;
+    private static final int INITIAL_COMMANDS = 64;
+
+    private final int vao;
+    private int buffer;
+    private int numSlots = INITIAL_SLOTS;
+    private final BitSet usedSlots = new BitSet();
+
+    private final int indirectBuffer;
+    private IntBuffer commands = BufferUtils.createIntBuffer(INITIAL_COMMANDS * COMMAND_SIZE);
+    /** {@code null} unless {@link ParticleEngineModPlugin#computeCulling} is set. */
+    final ParticleCuller culler = ParticleEngineModPlugin.computeCulling ? new ParticleCuller() : null;
+
+    SharedParticleBuffer() {
+        buffer = createBuffer(numSlots);
+        vao = GL30.glGenVertexArrays();
+        GL30.glBindVertexArray(vao);
+        for (int i = 0; i < Particles.VERTEX_ATTRIB_SIZES.length; i++) {
+            int size = Particles.VERTEX_ATTRIB_SIZES[i], type = Particles.VERTEX_ATTRIB_TYPES[i], offset = Particles.VERTEX_ATTRIB_OFFSETS[i];
+            GL20.glEnableVertexAttribArray(i);
+            if (type == GL11.GL_INT) {
+                GL43.glVertexAttribIFormat(i, size, type, offset);
+            } else {
+                GL43.glVertexAttribFormat(i, size, type, false, offset);
+            }
+            GL43.glVertexAttribBinding(i, 0);
+        }
+        GL43.glVertexBindingDivisor(0, 1);
+        GL43.glBindVertexBuffer(0, buffer, 0, Particles.BYTES_PER_PARTICLE);
+        GL30.glBindVertexArray(0);
+
+        indirectBuffer = GL15.glGenBuffers();
+    }
+
+    private static int createBuffer(int numSlots) {
+        int buffer = GL15.glGenBuffers();
+        GL15.glBindBuffer(GL15.GL_ARRAY_BUFFER, buffer);
+        GL15.glBufferData(GL15.GL_ARRAY_BUFFER, (long) numSlots * SLOT_CAPACITY * Particles.BYTES_PER_PARTICLE, GL15.GL_DYNAMIC_DRAW);
+        GL15.glBindBuffer(GL15.GL_ARRAY_BUFFER, 0);
+        return buffer;
+    }
+
+    /**
+     * Reserves a free slot, doubling the number of slots if all of them are in use. Growing replaces the underlying
+     * buffer, so callers shouldn't hold on to {@link #getBuffer()} across calls to this method.
+     *
+     * @return Index of the reserved slot.
+     */
+    int acquireSlot() {
+        int slot = usedSlots.nextClearBit(0);
+        if (slot >= numSlots) {
+            grow(numSlots * 2);
+        }
+        usedSlots.set(slot);
+        return slot;
+    }
+
+    void releaseSlot(int slot) {
+        usedSlots.clear(slot);
+    }
+
+    /** Replaces the buffer with one that has {@code newNumSlots} slots. Existing contents are copied on the GPU. */
+    private void grow(int newNumSlots) {
+        int newBuffer = createBuffer(newNumSlots);
+        GL15.glBindBuffer(GL31.GL_COPY_READ_BUFFER, buffer);
+        GL15.glBindBuffer(GL31.GL_COPY_WRITE_BUFFER, newBuffer);
+        GL31.glCopyBufferSubData(
+                GL31.GL_COPY_READ_BUFFER,
+                GL31.GL_COPY_WRITE_BUFFER,
+                0,
+                0,
+                (long) numSlots * SLOT_CAPACITY * Particles.BYTES_PER_PARTICLE);
+        GL15.glBindBuffer(GL31.GL_COPY_READ_BUFFER, 0);
+        GL15.glBindBuffer(GL31.GL_COPY_WRITE_BUFFER, 0);
+        GL15.glDeleteBuffers(buffer);
+        buffer = newBuffer;
+        numSlots = newNumSlots;
+
+        GL30.glBindVertexArray(vao);
+        GL43.glBindVertexBuffer(0, buffer, 0, Particles.BYTES_PER_PARTICLE);
+        GL30.glBindVertexArray(0);
+    }
+
+    /** Discards every draw command added since the last call. */
+    void clearCommands() {
+        commands.clear();
+    }
+
+    /** Adds a command that draws {@code count} particles starting at particle {@code baseInstance} of the buffer. */
+    void addCommand(int count, int baseInstance) {
+        if (commands.remaining() < COMMAND_SIZE) {
+            IntBuffer newCommands = BufferUtils.createIntBuffer(commands.capacity() * 2);
+            commands.flip();
+            newCommands.put(commands);
+            commands = newCommands;
+        }
+        // vertex count, instance count, first vertex, base instance
+        commands.put(4).put(count).put(0).put(baseInstance);
+    }
+
+    /** @return Number of commands added since the last {@link #clearCommands()}. */
+    int numCommands() {
+        return commands.position() / COMMAND_SIZE;
+    }
+
+    /** @return The draw commands added since the last {@link #clearCommands()}, from position 0 to the limit. */
+    IntBuffer getCommands() {
+        return commands.duplicate().flip();
+    }
+
+    /** Uploads the draw commands and binds them to {@code GL_DRAW_INDIRECT_BUFFER}. */
+    void bindCommands() {
+        commands.flip();
+        GL15.glBindBuffer(GL40.GL_DRAW_INDIRECT_BUFFER, indirectBuffer);
+        GL15.glBufferData(GL40.GL_DRAW_INDIRECT_BUFFER, commands, GL15.GL_STREAM_DRAW);
+    }
+
+    /** Issues commands {@code [first, first + count)} of the bound draw commands. */
+    static void drawCommands(int first, int count) {
+        GL43.glMultiDrawArraysIndirect(GL11.GL_TRIANGLE_STRIP, (long) first * COMMAND_SIZE * Integer.BYTES, count, 0);
+    }
+
+    static void unbindCommands() {
+        GL15.glBindBuffer(GL40.GL_DRAW_INDIRECT_BUFFER, 0);
+    }
+
+    /** @return Number of particles the buffer can hold without growing. */
+    int capacity() {
+        return numSlots * SLOT_CAPACITY;
+    }
+
+    int getBuffer() {return buffer;}
+
+    int getVAO() {return vao;}
+}
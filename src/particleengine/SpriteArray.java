@@ -0,0 +1,282 @@
+package particleengine;
+
+import com.fs.starfarer.api.graphics.SpriteAPI;
+import org.apache.log4j.Logger;
+import org.lwjgl.opengl.*;
+
+import java.lang.ref.WeakReference;
+import java.util.*;
+
+/**
+ * {@code GL_TEXTURE_2D_ARRAY} holding copies of sprite textures, so that particle types that differ only in sprite
+ * can share one {@link ParticleAllocator} and one draw. Each sprite is an entry with its own UV rectangle, center,
+ * and layer, copied in on the GPU the first time the sprite is used; the entry's index is stored per burst in the
+ * {@link BurstTable}, and the entries themselves in a small storage buffer. There are two kinds of arrays:
+ * <ul>
+ *     <li>If {@link ParticleEngineModPlugin#textureArrays} is set, textures with the same size and format share an
+ *     array, one texture per layer.</li>
+ *     <li>If {@link ParticleEngineModPlugin#spriteAtlas} is set, loose sprites loaded through
+ *     {@link Utils#getLoadedSprite} are packed into the pages of a single atlas, several per layer. The atlas keeps
+ *     its copy after the game unloads the original texture.</li>
+ * </ul>
+ * Sprites that don't fit either kind keep their own particle types.
+ */
+class SpriteArray {
+    private static final Logger logger = Logger.getLogger(SpriteArray.class);
+
+    /** Sprites whose textures are bigger than this along either axis, in pixels, aren't put in per-texture arrays. */
+    static final int MAX_TEXTURE_SIZE = 256;
+    /** In number of layers. */
+    private static final int INITIAL_LAYERS = 8, MAX_LAYERS = 256;
+    /** Side length of an atlas page, in pixels. */
+    static final int ATLAS_PAGE_SIZE = 1024;
+    /** Loose sprites bigger than this along either axis, in pixels, aren't packed into the atlas. */
+    static final int MAX_ATLAS_SPRITE_SIZE = 256;
+    private static final int MAX_ATLAS_PAGES = 16;
+    /** vec4 UV offset and scale, vec4 sprite center and layer; in bytes. */
+    private static final int ENTRY_SIZE = 32;
+
+    /** A sprite's place in an array. */
+    record Entry(SpriteArray array, int index) {}
+
+    private record Format(int width, int height, int internalFormat) {}
+
+    /** Entry for a texture, and the sprite the texture was first seen through. */
+    private record TextureSource(WeakReference<SpriteAPI> sprite, Entry entry) {}
+
+    private static final Map<Format, SpriteArray> arrays = new HashMap<>();
+    /** Entries of the sprites looked at so far. {@link #UNBATCHED} if the sprite's texture can't go in an array. */
+    private static final Map<SpriteAPI, Entry> entriesBySprite = new WeakHashMap<>();
+    /**
+     * Sources by texture id, so that sprites sharing a texture share its layer. The game reuses the id of a texture
+     * it unloads, so a source is only trusted while the sprite it was seen through is still around and still reports
+     * that id.
+     */
+    private static final Map<Integer, TextureSource> sourcesByTexture = new HashMap<>();
+    private static final Entry UNBATCHED = new Entry(null, -1);
+
+    /** {@code null} until the first loose sprite is packed. */
+    private static SpriteArray atlas;
+    /** Atlas entries by file path, so that a sprite is only packed once even if its texture is reloaded. */
+    private static final Map<String, Entry> atlasEntriesByPath = new HashMap<>();
+    /** Atlas entries of the sprites returned by {@link Utils#getLoadedSprite}. */
+    private static final Map<SpriteAPI, Entry> atlasEntriesBySprite = new WeakHashMap<>();
+
+    private static int nextId = 0;
+    /** Used to order particle types deterministically. */
+    final int id = nextId++;
+    /** Size and format of each layer. */
+    private final Format format;
+    /** Shelves of the atlas pages, each {@code {layer, y, height, next free x}}; {@code null} if not an atlas. */
+    private final List<int[]> shelves;
+    /** Lowest row of the last atlas page that no shelf uses yet. */
+    private int openY = 0;
+    private int texture = 0;
+    private int numLayers = 0, layerCapacity = 0, numEntries = 0;
+    private final StorageBuffer entryData = new StorageBuffer(ParticleShader.spriteEntriesBinding, ENTRY_SIZE, INITIAL_LAYERS);
+
+    private SpriteArray(Format format, boolean isAtlas) {
+        this.format = format;
+        shelves = isAtlas ? new ArrayList<>() : null;
+    }
+
+    /**
+     * @return The array entry that {@code sprite} is drawn from, copying its texture into a per-texture array now if
+     * this is the first time the texture is used, or {@code null} if the sprite should be drawn from its own texture.
+     */
+    static Entry forSprite(SpriteAPI sprite) {
+        if (sprite == null) return null;
+        if (ParticleEngineModPlugin.spriteAtlas) {
+            Entry entry = atlasEntriesBySprite.get(sprite);
+            if (entry != null) return entry;
+        }
+        if (!ParticleEngineModPlugin.textureArrays) return null;
+        Entry entry = entriesBySprite.get(sprite);
+        if (entry == null) {
+            int textureId = sprite.getTextureId();
+            if (textureId <= 0) return null;
+            TextureSource source = sourcesByTexture.get(textureId);
+            SpriteAPI sourceSprite = source == null ? null : source.sprite.get();
+            if (sourceSprite != null && sourceSprite.getTextureId() == textureId) {
+                entry = source.entry;
+            } else {
+                entry = addTexture(sprite);
+                sourcesByTexture.put(textureId, new TextureSource(new WeakReference<>(sprite), entry));
+            }
+            entriesBySprite.put(sprite, entry);
+        }
+        return entry == UNBATCHED ? null : entry;
+    }
+
+    /**
+     * Packs {@code sprite}, loaded from {@code loc}, into the atlas if {@link ParticleEngineModPlugin#spriteAtlas} is
+     * set and it fits. Called by {@link Utils#getLoadedSprite}.
+     */
+    static void addLooseSprite(String loc, SpriteAPI sprite) {
+        if (!ParticleEngineModPlugin.spriteAtlas || sprite == null || sprite.getTextureId() <= 0) return;
+        Entry entry = atlasEntriesByPath.get(loc);
+        if (entry == null && !atlasEntriesByPath.containsKey(loc)) {
+            entry = packIntoAtlas(sprite);
+            atlasEntriesByPath.put(loc, entry);
+        }
+        if (entry != null) {
+            atlasEntriesBySprite.put(sprite, entry);
+        }
+    }
+
+    /** @return Width, height, and internal format of {@code sprite}'s texture. */
+    private static Format textureFormat(SpriteAPI sprite) {
+        int previousTexture = GL11.glGetInteger(GL11.GL_TEXTURE_BINDING_2D);
+        GL11.glBindTexture(GL11.GL_TEXTURE_2D, sprite.getTextureId());
+        int width = GL11.glGetTexLevelParameteri(GL11.GL_TEXTURE_2D, 0, GL11.GL_TEXTURE_WIDTH);
+        int height = GL11.glGetTexLevelParameteri(GL11.GL_TEXTURE_2D, 0, GL11.GL_TEXTURE_HEIGHT);
+        int internalFormat = GL11.glGetTexLevelParameteri(GL11.GL_TEXTURE_2D, 0, GL11.GL_TEXTURE_INTERNAL_FORMAT);
+        GL11.glBindTexture(GL11.GL_TEXTURE_2D, previousTexture);
+        return new Format(width, height, internalFormat);
+    }
+
+    private static Entry addTexture(SpriteAPI sprite) {
+        Format format = textureFormat(sprite);
+        if (format.width <= 0 || format.height <= 0 || format.width > MAX_TEXTURE_SIZE || format.height > MAX_TEXTURE_SIZE) {
+            return UNBATCHED;
+        }
+
+        SpriteArray array = arrays.computeIfAbsent(format, f -> new SpriteArray(f, false));
+        if (array.numLayers >= MAX_LAYERS) {
+            return UNBATCHED;
+        }
+        int layer = array.addLayer();
+        array.copy(sprite, 0, 0, layer, format.width, format.height);
+        // Each texture fills its layer, which is clamped at the edges
+        return new Entry(array, array.addEntry(sprite, 0f, 0f, sprite.getTexWidth(), sprite.getTexHeight(), layer));
+    }
+
+    /** @return The sprite's atlas entry, or {@code null} if it can't be packed. */
+    private static Entry packIntoAtlas(SpriteAPI sprite) {
+        Format format = textureFormat(sprite);
+        // Only the part of the texture the sprite uses is copied
+        int width = Math.round(sprite.getTexWidth() * format.width), height = Math.round(sprite.getTexHeight() * format.height);
+        if (format.internalFormat != GL11.GL_RGBA8
+                || width <= 0 || height <= 0 || width > MAX_ATLAS_SPRITE_SIZE || height > MAX_ATLAS_SPRITE_SIZE) {
+            return null;
+        }
+        if (atlas == null) {
+            atlas = new SpriteArray(new Format(ATLAS_PAGE_SIZE, ATLAS_PAGE_SIZE, GL11.GL_RGBA8), true);
+        }
+        int[] place = atlas.place(width, height);
+        if (place == null) {
+            return null;
+        }
+        atlas.copy(sprite, place[0], place[1], place[2], width, height);
+        // Inset by half a texel, so that filtering never samples the neighboring sprites
+        float page = ATLAS_PAGE_SIZE;
+        return new Entry(atlas, atlas.addEntry(
+                sprite,
+                (place[0] + 0.5f) / page,
+                (place[1] + 0.5f) / page,
+                (width - 1) / page,
+                (height - 1) / page,
+                place[2]));
+    }
+
+    /**
+     * Finds room for a {@code width} by {@code height} rectangle on an atlas page, on the first shelf that's tall
+     * enough but not more than twice as tall, or else on a new shelf.
+     *
+     * @return {@code {x, y, layer}}, or {@code null} if every page is full.
+     */
+    private int[] place(int width, int height) {
+        for (int[] shelf : shelves) {
+            if (shelf[2] >= height && shelf[2] < 2 * height && shelf[3] + width <= ATLAS_PAGE_SIZE) {
+                int x = shelf[3];
+                shelf[3] += width;
+                return new int[] {x, shelf[1], shelf[0]};
+            }
+        }
+        if (numLayers == 0 || openY + height > ATLAS_PAGE_SIZE) {
+            if (numLayers >= MAX_ATLAS_PAGES) {
+                return null;
+            }
+            addLayer();
+            openY = 0;
+        }
+        int[] shelf = {numLayers - 1, openY, height, width};
+        shelves.add(shelf);
+        openY += height;
+        return new int[] {0, shelf[1], shelf[0]};
+    }
+
+    /** @return Index of a new layer, growing the array if needed. */
+    private int addLayer() {
+        if (numLayers == layerCapacity) {
+            grow(layerCapacity == 0 ? (shelves == null ? INITIAL_LAYERS : 1) : 2 * layerCapacity);
+        }
+        return numLayers++;
+    }
+
+    /** Copies the {@code width} by {@code height} pixels at the origin of {@code sprite}'s texture to {@code (x, y)} of {@code layer}. */
+    private void copy(SpriteAPI sprite, int x, int y, int layer, int width, int height) {
+        GL43.glCopyImageSubData(
+                sprite.getTextureId(), GL11.GL_TEXTURE_2D, 0, 0, 0, 0,
+                texture, GL30.GL_TEXTURE_2D_ARRAY, 0, x, y, layer,
+                width, height, 1);
+        int error = GL11.glGetError();
+        if (error != GL11.GL_NO_ERROR) {
+            logger.error("Failed to copy texture " + sprite.getTextureId() + " into a sprite array with error code: " + error);
+        }
+    }
+
+    /** @return Index of a new entry for {@code sprite}, whose texture coordinates span the given rectangle. */
+    private int addEntry(SpriteAPI sprite, float u, float v, float uScale, float vScale, int layer) {
+        int index = numEntries++;
+        // Same as the uniforms set in ParticleRenderer for sprites drawn from their own textures
+        float spriteCenterX = sprite.getCenterX() >= 0f ? sprite.getCenterX() / sprite.getWidth() : 0.5f;
+        float spriteCenterY = sprite.getCenterY() >= 0f ? sprite.getCenterY() / sprite.getHeight() : 0.5f;
+        entryData.ensureCapacity(numEntries);
+        int offset = index * ENTRY_SIZE;
+        entryData.data()
+                .putFloat(offset, u)
+                .putFloat(offset + 4, v)
+                .putFloat(offset + 8, uScale)
+                .putFloat(offset + 12, vScale)
+                .putFloat(offset + 16, spriteCenterX)
+                .putFloat(offset + 20, spriteCenterY)
+                .putFloat(offset + 24, layer)
+                .putFloat(offset + 28, 0f);
+        entryData.markDirty(index, 1);
+        return index;
+    }
+
+    /** Replaces the array texture with one of {@code newCapacity} layers, copying the existing layers on the GPU. */
+    private void grow(int newCapacity) {
+        int newTexture = GL11.glGenTextures();
+        int previousTexture = GL11.glGetInteger(GL30.GL_TEXTURE_BINDING_2D_ARRAY);
+        GL11.glBindTexture(GL30.GL_TEXTURE_2D_ARRAY, newTexture);
+        GL42.glTexStorage3D(GL30.GL_TEXTURE_2D_ARRAY, 1, format.internalFormat, format.width, format.height, newCapacity);
+        // Only the base level is copied, so mipmapped filtering would leave the texture incomplete
+        GL11.glTexParameteri(GL30.GL_TEXTURE_2D_ARRAY, GL11.GL_TEXTURE_MIN_FILTER, GL11.GL_LINEAR);
+        GL11.glTexParameteri(GL30.GL_TEXTURE_2D_ARRAY, GL11.GL_TEXTURE_MAG_FILTER, GL11.GL_LINEAR);
+        GL11.glTexParameteri(GL30.GL_TEXTURE_2D_ARRAY, GL11.GL_TEXTURE_WRAP_S, GL12.GL_CLAMP_TO_EDGE);
+        GL11.glTexParameteri(GL30.GL_TEXTURE_2D_ARRAY, GL11.GL_TEXTURE_WRAP_T, GL12.GL_CLAMP_TO_EDGE);
+        GL11.glBindTexture(GL30.GL_TEXTURE_2D_ARRAY, previousTexture);
+        if (numLayers > 0) {
+            GL43.glCopyImageSubData(
+                    texture, GL30.GL_TEXTURE_2D_ARRAY, 0, 0, 0, 0,
+                    newTexture, GL30.GL_TEXTURE_2D_ARRAY, 0, 0, 0, 0,
+                    format.width, format.height, numLayers);
+        }
+        if (texture != 0) {
+            GL11.glDeleteTextures(texture);
+        }
+        texture = newTexture;
+        layerCapacity = newCapacity;
+    }
+
+    /** Binds the array texture to texture unit {@code unit}, and the entries to their storage binding point. */
+    void bind(int unit) {
+        GL13.glActiveTexture(GL13.GL_TEXTURE0 + unit);
+        GL11.glBindTexture(GL30.GL_TEXTURE_2D_ARRAY, texture);
+        entryData.upload();
+        entryData.bind();
+    }
+}
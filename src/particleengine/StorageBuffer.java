@@ -0,0 +1,90 @@
+package particleengine;
+
+import org.lwjgl.BufferUtils;
+import org.lwjgl.opengl.GL15;
+import org.lwjgl.opengl.GL30;
+import org.lwjgl.opengl.GL43;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Shader storage buffer of fixed-size elements that grows as needed. Elements are written into a CPU-side copy,
+ * and only the range that changed since the last {@link #upload()} is sent to the GPU.
+ */
+class StorageBuffer {
+    private final int buffer;
+    private final int binding;
+    /** In bytes. */
+    private final int elementSize;
+    /** Native-order copy of the buffer's contents. */
+    private ByteBuffer data;
+    /** Number of elements the GPU buffer currently has room for. */
+    private int gpuCapacity = 0;
+    /** Range of elements, {@code [dirtyStart, dirtyEnd)}, that changed since the last upload. */
+    private int dirtyStart = Integer.MAX_VALUE, dirtyEnd = 0;
+
+    StorageBuffer(int binding, int elementSize, int initialCapacity) {
+        this.binding = binding;
+        this.elementSize = elementSize;
+        data = BufferUtils.createByteBuffer(initialCapacity * elementSize);
+        buffer = GL15.glGenBuffers();
+    }
+
+    /** @return Number of elements that fit in the buffer without growing it. */
+    int capacity() {
+        return data.capacity() / elementSize;
+    }
+
+    /** Grows the buffer, by doubling, until it fits at least {@code numElements} elements. */
+    void ensureCapacity(int numElements) {
+        if (numElements <= capacity()) return;
+        int newCapacity = capacity();
+        while (newCapacity < numElements) {
+            newCapacity *= 2;
+        }
+        ByteBuffer newData = BufferUtils.createByteBuffer(newCapacity * elementSize);
+        data.clear();
+        newData.put(data);
+        newData.clear();
+        data = newData;
+    }
+
+    /**
+     * @return The CPU-side copy of the buffer. Element {@code i} starts at byte {@code i * elementSize}; write to it
+     * with absolute puts, then call {@link #markDirty}.
+     */
+    ByteBuffer data() {
+        return data;
+    }
+
+    void markDirty(int first, int count) {
+        dirtyStart = Math.min(dirtyStart, first);
+        dirtyEnd = Math.max(dirtyEnd, first + count);
+    }
+
+    /** Sends every element changed since the last call to the GPU, reallocating the GPU buffer if it grew. */
+    void upload() {
+        GL15.glBindBuffer(GL43.GL_SHADER_STORAGE_BUFFER, buffer);
+        if (gpuCapacity < capacity()) {
+            data.clear();
+            GL15.glBufferData(GL43.GL_SHADER_STORAGE_BUFFER, data, GL15.GL_DYNAMIC_DRAW);
+            gpuCapacity = capacity();
+        } else if (dirtyStart < dirtyEnd) {
+            data.limit(dirtyEnd * elementSize).position(dirtyStart * elementSize);
+            GL15.glBufferSubData(GL43.GL_SHADER_STORAGE_BUFFER, (long) dirtyStart * elementSize, data);
+            data.clear();
+        }
+        GL15.glBindBuffer(GL43.GL_SHADER_STORAGE_BUFFER, 0);
+        dirtyStart = Integer.MAX_VALUE;
+        dirtyEnd = 0;
+    }
+
+    /** Binds the buffer to its shader storage binding point. */
+    void bind() {
+        GL30.glBindBufferBase(GL43.GL_SHADER_STORAGE_BUFFER, binding, buffer);
+    }
+
+    void delete() {
+        GL15.glDeleteBuffers(buffer);
+    }
+}
@@ -0,0 +1,191 @@
+package particleengine;
+
+import com.fs.starfarer.api.combat.ViewportAPI;
+import org.lwjgl.BufferUtils;
+import org.lwjgl.util.vector.Vector2f;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Generates particles for {@link ParticleStream}s on worker threads while the main thread runs the rest of the frame.
+ * <br><br>
+ * Threading contract: everything that can run user code with side effects still runs on the main thread, in the
+ * same order as before. That is, {@link Particles.StreamAction doBeforeGenerating},
+ * {@link IEmitter#preInitParticles}, and the viewport check all run during {@link Particles#advance}, immediately
+ * before each burst is scheduled. The emitter is then {@link IEmitter#snapshot(IEmitter) snapshotted}, and only
+ * {@link IEmitter#initParticle} is called on a worker thread, on the snapshot. Changes to the emitter after
+ * {@code doBeforeGenerating} returns therefore don't affect that burst. Particles are uploaded when they would have
+ * been anyway, before the next render. <br>
+ * Only used for emitters that are {@link IEmitter#isThreadSafe() thread-safe}. If an emitter can't be snapshotted,
+ * its bursts are generated on the main thread as they're scheduled.
+ */
+class StreamPipeline {
+    /** Jobs submitted since the last {@link #complete()}, in submission order. */
+    private final List<Job> submitted = new ArrayList<>();
+
+    /** @return Whether bursts from {@code emitter}'s streams should be generated by a pipeline. */
+    static boolean canPipeline(IEmitter emitter) {
+        return ParticleEngineModPlugin.pipelinedStreams && emitter.isThreadSafe();
+    }
+
+    /**
+     * A burst scheduled by a stream, and once generated, where its particles are in the job's buffer. Pooled by its
+     * job, along with its snapshot, which is overwritten by the next burst that reuses it.
+     */
+    private static final class Burst {
+        IEmitter emitter;
+        /** {@code null} if the burst was generated as soon as it was scheduled. */
+        IEmitter snapshot;
+        ParticleType type;
+        int count, startIndex, burstId;
+        float startTime;
+        boolean isCombat;
+        /**
+         * The live emitter's location when the burst was scheduled. The snapshot's own location can differ, e.g. if a
+         * subclass overrides {@link IEmitter#getLocation()}, so the burst's bounds are built from this instead.
+         */
+        final Vector2f location = new Vector2f();
+        /** In bytes. */
+        int offset, size;
+        float maxLife, maxDistance;
+        int features;
+    }
+
+    /**
+     * Bursts scheduled by one stream in one frame, generated together by one task. Owned by its stream and reused
+     * every frame, so its buffer only grows when the stream's bursts do.
+     */
+    static final class Job {
+        private static final int INITIAL_SIZE = 1 << 14;
+
+        /** Every burst this job has needed at once; only the first {@link #numBursts} are scheduled. */
+        private final List<Burst> bursts = new ArrayList<>();
+        private int numBursts = 0;
+        private final ParticleWriter writer = new ParticleWriter();
+        private ByteBuffer buffer = BufferUtils.createByteBuffer(INITIAL_SIZE);
+        /** Bytes of {@link #buffer} reserved by the scheduled bursts. */
+        private int used = 0;
+        private ForkJoinTask<?> task;
+
+        /**
+         * Starts a burst of {@code count} particles from {@code emitter}, and either snapshots the emitter so that
+         * the particles can be generated later, or generates them right away.
+         */
+        void schedule(IEmitter emitter, int count, int startIndex) {
+            boolean isCombat = Particles.isCombat();
+            ViewportAPI viewport = Particles.getViewport(isCombat);
+            float startTime = Particles.getCurrentTime();
+            ParticleType type = Particles.getParticleType(emitter, isCombat);
+            int burstId = emitter.beginBurst(count, startIndex, viewport);
+            if (burstId < 0) {
+                return;
+            }
+
+            if (numBursts == bursts.size()) {
+                bursts.add(new Burst());
+            }
+            Burst burst = bursts.get(numBursts);
+            burst.emitter = emitter;
+            burst.snapshot = emitter.takeSnapshot(burst.snapshot);
+            burst.type = type;
+            burst.count = count;
+            burst.startIndex = startIndex;
+            burst.burstId = burstId;
+            burst.startTime = startTime;
+            burst.isCombat = isCombat;
+            burst.location.set(emitter.getLocation());
+            burst.offset = used;
+            ensureCapacity(used + count * Particles.BYTES_PER_PARTICLE);
+            used += count * Particles.BYTES_PER_PARTICLE;
+            if (burst.snapshot == null) {
+                generate(burst, emitter);
+            }
+            numBursts++;
+        }
+
+        /** Grows {@link #buffer}, keeping its contents. Only called before the job is submitted. */
+        private void ensureCapacity(int numBytes) {
+            if (numBytes <= buffer.capacity()) return;
+            ByteBuffer newBuffer = BufferUtils.createByteBuffer(Math.max(numBytes, 2 * buffer.capacity()));
+            buffer.clear().limit(used);
+            newBuffer.put(buffer).clear();
+            buffer = newBuffer;
+        }
+
+        private void generate(Burst burst, IEmitter source) {
+            ByteBuffer out = buffer.duplicate().order(ByteOrder.nativeOrder());
+            out.position(burst.offset);
+            burst.maxLife = source.writeParticles(writer, out, burst.count, burst.startIndex, burst.burstId, burst.startTime, false);
+            burst.size = out.position() - burst.offset;
+            burst.maxDistance = writer.maxDistance;
+            burst.features = source.generatedFeatures;
+        }
+
+        /** Generates every snapshotted burst. Runs on a worker thread. */
+        private void generateSnapshots() {
+            for (int i = 0; i < numBursts; i++) {
+                Burst burst = bursts.get(i);
+                if (burst.snapshot != null) {
+                    generate(burst, burst.snapshot);
+                }
+            }
+        }
+
+        boolean isEmpty() {
+            return numBursts == 0;
+        }
+
+        private void reset() {
+            numBursts = 0;
+            used = 0;
+            task = null;
+        }
+    }
+
+    /** Starts generating {@code job}'s snapshotted bursts on the common {@link ForkJoinPool}. */
+    void submit(Job job) {
+        if (job.isEmpty()) return;
+        job.task = ForkJoinPool.commonPool().submit(job::generateSnapshots);
+        submitted.add(job);
+    }
+
+    /**
+     * Waits for every submitted job and stages their bursts in the allocators for their particle types, in the order
+     * they were scheduled. Must be called on the main thread before a job's stream schedules bursts again.
+     */
+    void complete() {
+        for (Job job : submitted) {
+            job.task.join();
+            for (int i = 0; i < job.numBursts; i++) {
+                Burst burst = job.bursts.get(i);
+                if (burst.size > 0) {
+                    ByteBuffer particles = job.buffer.duplicate().order(ByteOrder.nativeOrder());
+                    particles.limit(burst.offset + burst.size).position(burst.offset);
+                    // A tracked emitter can take its particles anywhere
+                    Bounds bounds = (burst.features & ParticleShader.TRACKED) != 0
+                            ? Bounds.UNBOUNDED
+                            : Bounds.around(burst.location, burst.maxDistance);
+                    Particles.getAllocator(burst.type)
+                            .stageGenerated(particles, burst.startTime, burst.maxLife, burst.features, bounds, burst.isCombat);
+                }
+                burst.emitter.endBurst(burst.burstId, burst.startTime, burst.maxLife, burst.isCombat);
+            }
+            job.reset();
+        }
+        submitted.clear();
+    }
+
+    /** Waits for every submitted job and drops their bursts. */
+    void discard() {
+        for (Job job : submitted) {
+            job.task.join();
+            job.reset();
+        }
+        submitted.clear();
+    }
+}
@@ -0,0 +1,204 @@
+package particleengine;
+
+import java.util.Arrays;
+
+/**
+ * Hierarchical timing wheel of deferred events, used in place of a priority queue. Time is divided into ticks of
+ * {@value TICK} seconds. Each of the {@value LEVELS} wheels has {@value SLOTS} slots: a slot of wheel 0 holds the
+ * events of one tick, and a slot of each higher wheel holds the events of one whole turn of the wheel below it.
+ * When the current tick enters a higher slot's span, that slot's events are moved down a level. Events further out
+ * than the top wheel are kept in an overflow list, which is looked at once per turn of the top wheel. <br>
+ * Scheduling and firing are O(1). Events are stored in parallel primitive arrays linked by index and reused once
+ * fired, so scheduling a {@link Handler} event doesn't allocate. Events in the same tick fire in no particular
+ * order, but never before their time.
+ */
+class TimingWheel {
+    /** Seconds per tick. */
+    static final float TICK = 1f / 32f;
+    private static final int SLOT_BITS = 6, SLOTS = 1 << SLOT_BITS, SLOT_MASK = SLOTS - 1;
+    private static final int LEVELS = 3;
+    private static final int NONE = -1;
+
+    /** Receiver of primitive events, so that scheduling them doesn't need a capturing lambda. */
+    interface Handler {
+        void onEvent(Object payload, int arg);
+    }
+
+    /** Runs {@link Particles.Action}s passed as payloads. */
+    private static final Handler RUN_ACTION = (payload, arg) -> ((Particles.Action) payload).perform();
+
+    private float[] times = new float[256];
+    private Handler[] handlers = new Handler[256];
+    private Object[] payloads = new Object[256];
+    private int[] args = new int[256];
+    /** Next event in the same list, or {@link #NONE}. */
+    private int[] next = new int[256];
+    /** Head of the list of reusable event indices. */
+    private int freeHead = NONE;
+    /** Number of event indices ever used. */
+    private int numEntries = 0;
+    private int size = 0;
+
+    /** Heads of each slot's event list, indexed by {@code level * SLOTS + slot}. */
+    private final int[] slots = new int[LEVELS * SLOTS];
+    /** Events past the range of the top wheel. */
+    private int overflow = NONE;
+    /** Events scheduled in a tick that has already been processed, which are fired on the next {@link #advance}. */
+    private int late = NONE;
+    /** Last tick whose slots have been moved down and fired. */
+    private long currentTick = 0;
+
+    TimingWheel() {
+        Arrays.fill(slots, NONE);
+    }
+
+    /** Schedules {@code action} to be performed at time {@code time}. */
+    void schedule(float time, Particles.Action action) {
+        schedule(time, RUN_ACTION, action, 0);
+    }
+
+    /** Schedules {@code handler.onEvent(payload, arg)} at time {@code time}. */
+    void schedule(float time, Handler handler, Object payload, int arg) {
+        int entry = newEntry();
+        times[entry] = time;
+        handlers[entry] = handler;
+        payloads[entry] = payload;
+        args[entry] = arg;
+        insert(entry);
+        size++;
+    }
+
+    /** Fires every event whose time is at most {@code time}. */
+    void advance(float time) {
+        long targetTick = tickOf(time);
+        fireList(takeLate(), time);
+        // Events later in the current tick may have become due since the last call
+        fireSlot((int) (currentTick & SLOT_MASK), time);
+        while (currentTick < targetTick) {
+            currentTick++;
+            cascade(currentTick);
+            fireSlot((int) (currentTick & SLOT_MASK), time);
+        }
+    }
+
+    int size() {
+        return size;
+    }
+
+    /** Drops every event. */
+    void clear() {
+        Arrays.fill(slots, NONE);
+        Arrays.fill(handlers, 0, numEntries, null);
+        Arrays.fill(payloads, 0, numEntries, null);
+        overflow = late = freeHead = NONE;
+        numEntries = size = 0;
+    }
+
+    private static long tickOf(float time) {
+        return (long) Math.floor(time / TICK);
+    }
+
+    private int newEntry() {
+        if (freeHead != NONE) {
+            int entry = freeHead;
+            freeHead = next[entry];
+            return entry;
+        }
+        if (numEntries == times.length) {
+            int newLength = 2 * numEntries;
+            times = Arrays.copyOf(times, newLength);
+            handlers = Arrays.copyOf(handlers, newLength);
+            payloads = Arrays.copyOf(payloads, newLength);
+            args = Arrays.copyOf(args, newLength);
+            next = Arrays.copyOf(next, newLength);
+        }
+        return numEntries++;
+    }
+
+    /** Links {@code entry} into the list it belongs in, given {@link #currentTick}. */
+    private void insert(int entry) {
+        long tick = tickOf(times[entry]);
+        if (tick < currentTick) {
+            next[entry] = late;
+            late = entry;
+            return;
+        }
+        // An event goes in the lowest wheel whose current turn contains its tick
+        for (int level = 0; level < LEVELS; level++) {
+            int shift = SLOT_BITS * (level + 1);
+            if (tick >> shift == currentTick >> shift) {
+                int slot = level * SLOTS + (int) ((tick >> (SLOT_BITS * level)) & SLOT_MASK);
+                next[entry] = slots[slot];
+                slots[slot] = entry;
+                return;
+            }
+        }
+        next[entry] = overflow;
+        overflow = entry;
+    }
+
+    /** Moves the events of every higher slot whose span starts at {@code tick} down a level, top wheel first. */
+    private void cascade(long tick) {
+        if ((tick & SLOT_MASK) != 0) return;
+        int level = 1;
+        while (level < LEVELS && ((tick >> (SLOT_BITS * level)) & SLOT_MASK) == 0) {
+            level++;
+        }
+        if (level == LEVELS) {
+            int list = overflow;
+            overflow = NONE;
+            reinsertList(list);
+            level--;
+        }
+        for (; level >= 1; level--) {
+            int slot = level * SLOTS + (int) ((tick >> (SLOT_BITS * level)) & SLOT_MASK);
+            int list = slots[slot];
+            slots[slot] = NONE;
+            reinsertList(list);
+        }
+    }
+
+    private void reinsertList(int entry) {
+        while (entry != NONE) {
+            int following = next[entry];
+            insert(entry);
+            entry = following;
+        }
+    }
+
+    private int takeLate() {
+        int list = late;
+        late = NONE;
+        return list;
+    }
+
+    private void fireSlot(int slot, float time) {
+        int list = slots[slot];
+        slots[slot] = NONE;
+        fireList(list, time);
+    }
+
+    /**
+     * Fires the events in {@code entry}'s list whose time is at most {@code time}, and puts the rest back. The list
+     * is detached first, so handlers can schedule events of their own.
+     */
+    private void fireList(int entry, float time) {
+        while (entry != NONE) {
+            int following = next[entry];
+            if (times[entry] > time) {
+                insert(entry);
+            } else {
+                Handler handler = handlers[entry];
+                Object payload = payloads[entry];
+                int arg = args[entry];
+                handlers[entry] = null;
+                payloads[entry] = null;
+                next[entry] = freeHead;
+                freeHead = entry;
+                size--;
+                handler.onEvent(payload, arg);
+            }
+            entry = following;
+        }
+    }
+}
@@ -0,0 +1,215 @@
+package particleengine;
+
+import org.apache.log4j.Logger;
+import org.lwjgl.BufferUtils;
+import org.lwjgl.opengl.*;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Storage buffer behind the {@link EmitterBufferHandler}. Slots are written into a CPU-side copy, and only slots
+ * whose values actually changed are marked dirty. Each frame, the dirty slots are coalesced into runs and only those
+ * runs are sent to the GPU. <br>
+ * If persistently mapped uploads are enabled and supported, the buffer holds {@value REGIONS} copies of the table,
+ * used round-robin and each guarded by a fence, so the CPU writes into a copy the GPU has finished reading instead of
+ * waiting on the previous frame. Each copy keeps its own set of dirty slots, since it missed every change made while
+ * the other copies were in use. Otherwise, there is one copy, updated with {@code glBufferSubData}.
+ */
+class TrackedEmitterStorage {
+    private static final Logger logger = Logger.getLogger(TrackedEmitterStorage.class);
+
+    /** Number of copies of the table in a persistently mapped buffer. */
+    static final int REGIONS = 3;
+    /** vec2 location, float facing in radians, float smoothing flag; in bytes. */
+    static final int ELEMENT_SIZE = 16;
+    /** Dirty runs separated by at most this many clean slots are uploaded together, to save on calls. */
+    private static final int MAX_GAP = 4;
+    /** How long to block on a single fence before checking it again, in nanoseconds. */
+    private static final long WAIT_TIMEOUT_NS = 1000000L;
+
+    private final boolean persistent =
+            ParticleEngineModPlugin.persistentMappedUploads && UploadRing.isSupported();
+    private final int numRegions = persistent ? REGIONS : 1;
+    private int capacity;
+    /** Native-order copy of the table's contents. */
+    private ByteBuffer data;
+    /** For each copy of the table, a bitset of the slots that changed since that copy was last written. */
+    private final long[][] dirty = new long[numRegions][];
+    /** Fence after the last frame that read each copy, or {@code null} if nothing is reading it. */
+    private final GLSync[] fences = new GLSync[numRegions];
+    /** Copy of the table that shaders currently read. */
+    private int current = 0;
+
+    private int buffer = 0;
+    /** {@code null} unless {@link #persistent} and the buffer could be mapped. */
+    private ByteBuffer mapped;
+    /** Whether the GPU buffer has to be recreated at the current capacity before the next upload. */
+    private boolean reallocate = true;
+
+    TrackedEmitterStorage(int capacity) {
+        this.capacity = capacity;
+        data = BufferUtils.createByteBuffer(capacity * ELEMENT_SIZE);
+        for (int i = 0; i < numRegions; i++) {
+            dirty[i] = new long[(capacity + 63) >>> 6];
+        }
+    }
+
+    /** Writes slot {@code index}, marking it dirty only if any of its values changed. */
+    void set(int index, float x, float y, float facing, float smooth) {
+        int offset = index * ELEMENT_SIZE;
+        if (data.getFloat(offset) == x
+                && data.getFloat(offset + 4) == y
+                && data.getFloat(offset + 8) == facing
+                && data.getFloat(offset + 12) == smooth) {
+            return;
+        }
+        data.putFloat(offset, x)
+                .putFloat(offset + 4, y)
+                .putFloat(offset + 8, facing)
+                .putFloat(offset + 12, smooth);
+        for (long[] regionDirty : dirty) {
+            regionDirty[index >> 6] |= 1L << index;
+        }
+    }
+
+    /**
+     * Resizes the table to {@code newCapacity} slots, keeping the ones that still fit. The GPU buffer is recreated on
+     * the next {@link #upload()}, and every copy of the table is rewritten then.
+     */
+    void resize(int newCapacity) {
+        ByteBuffer newData = BufferUtils.createByteBuffer(newCapacity * ELEMENT_SIZE);
+        data.limit(Math.min(capacity, newCapacity) * ELEMENT_SIZE).position(0);
+        newData.put(data);
+        newData.clear();
+        data = newData;
+        capacity = newCapacity;
+        for (int i = 0; i < numRegions; i++) {
+            dirty[i] = new long[(capacity + 63) >>> 6];
+        }
+        reallocate = true;
+    }
+
+    /**
+     * Writes the dirty slots into the next copy of the table and makes it the one shaders read. Should be called
+     * once per frame, before anything is drawn.
+     */
+    void upload() {
+        if (reallocate) {
+            allocate();
+        }
+        if (persistent) {
+            // Everything drawn since the last upload read the current copy
+            fences[current] = GL32.glFenceSync(GL32.GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+            current = (current + 1) % numRegions;
+            waitForFence(current);
+        }
+        if (mapped == null) {
+            GL15.glBindBuffer(GL43.GL_SHADER_STORAGE_BUFFER, buffer);
+        }
+
+        long[] regionDirty = dirty[current];
+        // Current run of dirty slots, [runStart, runEnd)
+        int runStart = -1, runEnd = -1;
+        for (int word = 0; word < regionDirty.length; word++) {
+            for (long bits = regionDirty[word]; bits != 0; bits &= bits - 1) {
+                int index = (word << 6) + Long.numberOfTrailingZeros(bits);
+                if (runStart >= 0 && index - runEnd > MAX_GAP) {
+                    uploadRun(runStart, runEnd);
+                    runStart = -1;
+                }
+                if (runStart < 0) {
+                    runStart = index;
+                }
+                runEnd = index + 1;
+            }
+        }
+        if (runStart >= 0) {
+            uploadRun(runStart, runEnd);
+        }
+        Arrays.fill(regionDirty, 0L);
+
+        if (mapped == null) {
+            GL15.glBindBuffer(GL43.GL_SHADER_STORAGE_BUFFER, 0);
+        }
+    }
+
+    /** Copies slots {@code [start, end)} into the current copy of the table. */
+    private void uploadRun(int start, int end) {
+        int offset = start * ELEMENT_SIZE, size = (end - start) * ELEMENT_SIZE;
+        if (mapped != null) {
+            mapped.put(current * regionSize() + offset, data, offset, size);
+        } else {
+            data.limit(offset + size).position(offset);
+            GL15.glBufferSubData(GL43.GL_SHADER_STORAGE_BUFFER, (long) current * regionSize() + offset, data);
+            data.clear();
+        }
+    }
+
+    /** Binds the current copy of the table to {@link ParticleShader#trackedEmitterBinding}. */
+    void bind() {
+        GL30.glBindBufferRange(GL43.GL_SHADER_STORAGE_BUFFER, ParticleShader.trackedEmitterBinding, buffer, (long) current * regionSize(), regionSize());
+    }
+
+    /** In bytes. Capacities are multiples of 256, so this is always a multiple of any storage buffer offset alignment. */
+    private int regionSize() {
+        return capacity * ELEMENT_SIZE;
+    }
+
+    /** Recreates the GPU buffer at the current capacity, and marks every slot dirty in every copy. */
+    private void allocate() {
+        delete();
+        reallocate = false;
+        for (long[] regionDirty : dirty) {
+            Arrays.fill(regionDirty, -1L);
+        }
+        buffer = GL15.glGenBuffers();
+        GL15.glBindBuffer(GL43.GL_SHADER_STORAGE_BUFFER, buffer);
+        if (!persistent) {
+            GL15.glBufferData(GL43.GL_SHADER_STORAGE_BUFFER, (long) regionSize(), GL15.GL_DYNAMIC_DRAW);
+            GL15.glBindBuffer(GL43.GL_SHADER_STORAGE_BUFFER, 0);
+            return;
+        }
+        int flags = GL30.GL_MAP_WRITE_BIT | GL44.GL_MAP_PERSISTENT_BIT | GL44.GL_MAP_COHERENT_BIT;
+        long size = (long) numRegions * regionSize();
+        // Dynamic so that the dirty runs can still be uploaded with glBufferSubData if mapping fails
+        GL44.glBufferStorage(GL43.GL_SHADER_STORAGE_BUFFER, size, flags | GL44.GL_DYNAMIC_STORAGE_BIT);
+        ByteBuffer map = GL30.glMapBufferRange(GL43.GL_SHADER_STORAGE_BUFFER, 0, size, flags, null);
+        if (map == null) {
+            logger.error("Failed to persistently map tracked emitter buffer with error code: " + GL11.glGetError());
+        }
+        mapped = map == null ? null : map.order(ByteOrder.nativeOrder());
+        GL15.glBindBuffer(GL43.GL_SHADER_STORAGE_BUFFER, 0);
+    }
+
+    private void waitForFence(int region) {
+        GLSync sync = fences[region];
+        if (sync == null) return;
+        fences[region] = null;
+        int status;
+        do {
+            status = GL32.glClientWaitSync(sync, GL32.GL_SYNC_FLUSH_COMMANDS_BIT, WAIT_TIMEOUT_NS);
+        } while (status == GL32.GL_TIMEOUT_EXPIRED);
+        if (status == GL32.GL_WAIT_FAILED) {
+            logger.error("Failed to wait on tracked emitter buffer fence with error code: " + GL11.glGetError());
+        }
+        GL32.glDeleteSync(sync);
+    }
+
+    /** Deletes the GPU buffer and any pending fences. The buffer is recreated if used again. */
+    void delete() {
+        for (int i = 0; i < numRegions; i++) {
+            if (fences[i] != null) {
+                GL32.glDeleteSync(fences[i]);
+                fences[i] = null;
+            }
+        }
+        if (buffer != 0) {
+            GL15.glDeleteBuffers(buffer);
+            buffer = 0;
+            mapped = null;
+        }
+        reallocate = true;
+    }
+}
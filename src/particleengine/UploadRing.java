@@ -0,0 +1,121 @@
+package particleengine;
+
+import org.apache.log4j.Logger;
+import org.lwjgl.opengl.*;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.Queue;
+
+/**
+ * Persistently mapped, fence-guarded ring buffer that emitters write particle data into directly.
+ * Reserved ranges are copied into allocators' vertex buffers with {@code glCopyBufferSubData}, so particle data is
+ * only written once by the CPU and uploads never force the driver to synchronize with in-flight draws.
+ */
+class UploadRing {
+    private static final Logger logger = Logger.getLogger(UploadRing.class);
+
+    /** In bytes. */
+    static final int DEFAULT_SIZE = 16 << 20;
+    /** How long to block on a single fence before checking it again, in nanoseconds. */
+    private static final long WAIT_TIMEOUT_NS = 1000000L;
+
+    private final int size;
+    private final int buffer;
+    private final ByteBuffer mapped;
+    private final Queue<FencedRegion> fences = new ArrayDeque<>();
+    /** Total number of bytes ever reserved, including padding skipped when wrapping around. */
+    private long written = 0;
+    /** Total number of bytes that the GPU is known to be done reading. */
+    private long released = 0;
+    private long lastFenced = 0;
+
+    private record FencedRegion(GLSync sync, long written) {}
+
+    static boolean isSupported() {
+        return GLContext.getCapabilities().OpenGL44;
+    }
+
+    UploadRing(int size) {
+        this.size = size;
+        int flags = GL30.GL_MAP_WRITE_BIT | GL44.GL_MAP_PERSISTENT_BIT | GL44.GL_MAP_COHERENT_BIT;
+        buffer = GL15.glGenBuffers();
+        GL15.glBindBuffer(GL31.GL_COPY_READ_BUFFER, buffer);
+        GL44.glBufferStorage(GL31.GL_COPY_READ_BUFFER, size, flags);
+        ByteBuffer map = GL30.glMapBufferRange(GL31.GL_COPY_READ_BUFFER, 0, size, flags, null);
+        if (map == null) {
+            logger.error("Failed to persistently map upload ring with error code: " + GL11.glGetError());
+        }
+        mapped = map == null ? null : map.order(ByteOrder.nativeOrder());
+        GL15.glBindBuffer(GL31.GL_COPY_READ_BUFFER, 0);
+    }
+
+    /**
+     * Reserves {@code numBytes} contiguous bytes of the ring, blocking on old fences if necessary.
+     *
+     * @return Offset of the reserved range in the ring, or {@code -1} if the range can't be reserved, in which case
+     * the caller should fall back to a regular buffer upload.
+     */
+    int reserve(int numBytes) {
+        if (mapped == null || numBytes > size) return -1;
+        int position = (int) (written % size);
+        int padding = position + numBytes > size ? size - position : 0;
+        while (size - (written - released) < padding + numBytes) {
+            // Everything left in the ring was written since the last fence, nothing to wait for
+            if (!waitForOldestFence()) return -1;
+        }
+        written += padding + numBytes;
+        return padding > 0 ? 0 : position;
+    }
+
+    /** @return Total number of bytes reserved so far. Every later reservation starts at or after this position. */
+    long position() {
+        return written;
+    }
+
+    /** @return A native-order view of {@code numBytes} bytes starting at {@code offset}. */
+    ByteBuffer slice(int offset, int numBytes) {
+        ByteBuffer view = mapped.duplicate();
+        view.position(offset).limit(offset + numBytes);
+        return view.slice().order(ByteOrder.nativeOrder());
+    }
+
+    /**
+     * Marks every range reserved before {@link #position() position} {@code limit} as in use by the GPU until all
+     * commands issued up to this point complete, after which it can be reused. Should be called once per frame, after
+     * the copies out of the ring have been issued; {@code limit} should be the start of the oldest reservation that
+     * hasn't been copied out yet, so that it isn't overwritten before it is.
+     */
+    void fence(long limit) {
+        // Release anything the GPU has already finished with, without blocking
+        FencedRegion oldest;
+        while ((oldest = fences.peek()) != null
+                && GL32.glClientWaitSync(oldest.sync, 0, 0) != GL32.GL_TIMEOUT_EXPIRED) {
+            fences.poll();
+            GL32.glDeleteSync(oldest.sync);
+            released = oldest.written;
+        }
+        long fenced = Math.min(written, limit);
+        if (fenced <= lastFenced) return;
+        fences.add(new FencedRegion(GL32.glFenceSync(GL32.GL_SYNC_GPU_COMMANDS_COMPLETE, 0), fenced));
+        lastFenced = fenced;
+    }
+
+    private boolean waitForOldestFence() {
+        FencedRegion oldest = fences.poll();
+        if (oldest == null) return false;
+        int status;
+        do {
+            status = GL32.glClientWaitSync(oldest.sync, GL32.GL_SYNC_FLUSH_COMMANDS_BIT, WAIT_TIMEOUT_NS);
+        } while (status == GL32.GL_TIMEOUT_EXPIRED);
+        if (status == GL32.GL_WAIT_FAILED) {
+            logger.error("Failed to wait on upload ring fence with error code: " + GL11.glGetError());
+        }
+        GL32.glDeleteSync(oldest.sync);
+        released = oldest.written;
+        return true;
+    }
+
+    int getBuffer() {return buffer;}
+}
@@ -3,7 +3,6 @@ package particleengine;
 import com.fs.starfarer.api.Global;
 import com.fs.starfarer.api.combat.ViewportAPI;
 import com.fs.starfarer.api.graphics.SpriteAPI;
-import com.fs.starfarer.api.util.Misc;
 import com.fs.starfarer.campaign.BaseLocation;
 import org.apache.log4j.Logger;
 import org.json.JSONArray;
@@ -78,7 +77,8 @@ public abstract class Utils {
      * Retrieves a sprite from the given file path, loading it into a texture if it doesn't already have a texture
      * assigned. <br>
      * Note: Sprites loaded in this manner are not loaded permanently; they are unloaded periodically in the
-     * campaign layer and at the start of each combat.
+     * campaign layer and at the start of each combat. If the sprite atlas is enabled, particles keep drawing the
+     * sprite from the atlas's copy.
      *
      * @param loc File path relative to the starsector-core directory
      * @return {@link SpriteAPI} object corresponding to the given file
@@ -95,6 +95,7 @@ public abstract class Utils {
                 sprite = null;
             }
         }
+        SpriteArray.addLooseSprite(loc, sprite);
         return sprite;
     }
 
@@ -102,13 +103,9 @@ public abstract class Utils {
         return readJSONArrayOrFloat(json, name, defaults, true);
     }
 
-    static float randBetween(float a, float b) {
-        return Misc.random.nextFloat() * (b - a) + a;
-    }
-
-    static Vector2f randomPointInRing(Vector2f center, float inRadius, float outRadius) {
-        float theta = Misc.random.nextFloat() * 2f * (float) Math.PI;
-        float r = (float) Math.sqrt(Misc.random.nextFloat() * (outRadius*outRadius - inRadius*inRadius) + inRadius*inRadius);
+    static Vector2f randomPointInRing(ParticleRandom random, Vector2f center, float inRadius, float outRadius) {
+        float theta = random.nextFloat() * 2f * (float) Math.PI;
+        float r = (float) Math.sqrt(random.nextFloat() * (outRadius*outRadius - inRadius*inRadius) + inRadius*inRadius);
         return new Vector2f(center.x + r*(float)Math.cos(theta), center.y + r*(float)Math.sin(theta));
     }
 
@@ -134,6 +131,45 @@ public abstract class Utils {
         return r;
     }
 
+    /**
+     * Converts {@code value} to an IEEE 754 half-precision float, rounding to nearest even. Finite values too large
+     * to be represented are clamped to the largest finite half float rather than becoming infinite.
+     */
+    static short toHalf(float value) {
+        int bits = Float.floatToRawIntBits(value);
+        int sign = (bits >>> 16) & 0x8000;
+        int exponent = (bits >>> 23) & 0xff;
+        int mantissa = bits & 0x7fffff;
+        if (exponent == 0xff) {
+            // Infinity or NaN
+            return (short) (sign | 0x7c00 | (mantissa != 0 ? 0x200 : 0));
+        }
+        int halfExponent = exponent - 127 + 15;
+        if (halfExponent >= 0x1f) {
+            return (short) (sign | 0x7bff);
+        }
+        if (halfExponent <= 0) {
+            // Subnormal, or too small and rounds to zero
+            if (halfExponent < -10) {
+                return (short) sign;
+            }
+            mantissa |= 0x800000;
+            int shift = 14 - halfExponent;
+            int half = mantissa >> shift;
+            int remainder = mantissa & ((1 << shift) - 1), halfway = 1 << (shift - 1);
+            if (remainder > halfway || (remainder == halfway && (half & 1) != 0)) {
+                half++;
+            }
+            return (short) (sign | half);
+        }
+        int half = (halfExponent << 10) | (mantissa >> 13);
+        int remainder = mantissa & 0x1fff;
+        if (remainder > 0x1000 || (remainder == 0x1000 && (half & 1) != 0)) {
+            half++;
+        }
+        return (short) (sign | Math.min(half, 0x7bff));
+    }
+
     static void toRGBA(float[] hsva, float[] dest) {
         float h = hsva[0], s = hsva[1], v = hsva[2], a = hsva[3];
         float c = v*s;
@@ -155,7 +191,10 @@ public abstract class Utils {
     }
 
     static void toHSVA(float[] rgba, float[] dest) {
-        float r = rgba[0], g = rgba[1], b = rgba[2];
+        toHSVA(rgba[0], rgba[1], rgba[2], rgba[3], dest);
+    }
+
+    static void toHSVA(float r, float g, float b, float a, float[] dest) {
         float CMax = Math.max(r, Math.max(g, b));
         float CMin = Math.min(r, Math.min(g, b));
         float delta = CMax - CMin;
@@ -172,6 +211,6 @@ public abstract class Utils {
 
         dest[1] = CMax == 0f ? 0f : delta / CMax;
         dest[2] = CMax;
-        dest[3] = rgba[3];
+        dest[3] = a;
     }
 }
@@ -2,11 +2,15 @@
 
 in vec2 tex_coord;
 in vec4 color;
+flat in int tex_layer;
 out vec4 frag_color;
 
 uniform sampler2D texSampler;
+uniform sampler2DArray texArraySampler;
 uniform bool useTexture;
+uniform bool useTextureArray;
 
 void main() {
-    frag_color = useTexture ? texture(texSampler, tex_coord) * color : vec4(color.xyz, color.w*(1.f-sqrt(2.f*distance(tex_coord, vec2(0.5f, 0.5f)))));
+    vec4 tex_color = useTextureArray ? texture(texArraySampler, vec3(tex_coord, tex_layer)) : texture(texSampler, tex_coord);
+    frag_color = useTexture ? tex_color * color : vec4(color.xyz, color.w*(1.f-sqrt(2.f*distance(tex_coord, vec2(0.5f, 0.5f)))));
 }
\ No newline at end of file
@@ -1,43 +1,35 @@
 #version 430 core
 
-layout (location = 0) in float tracked_emitter_index;
-// first 2 are particle's location at t=0, last 2 are emitter's location
-layout (location = 1) in vec4 pos_emitter_pos;
-layout (location = 2) in float emitter_forward_dir;
-// first 2 are velocity vector, last 2 are acceleration vector
-layout (location = 3) in vec4 vel_acc;
-// amplitude, frequency, and phase of sinusoidal motion along global x axis
-layout (location = 4) in vec3 sinusoid_x;
-// amplitude, frequency, and phase of sinusoidal motion along global y axis
-layout (location = 5) in vec3 sinusoid_y;
-// elements are direction, angular velocity, and angular acceleration
-layout (location = 6) in vec3 angle_data;
-// circle the initial position with the given angular velocity and acceleration
-layout (location = 7) in vec2 radial_data;
-// elements are scale, growth rate, and growth acceleration
-layout (location = 8) in vec3 size_data_x;
-layout (location = 9) in vec3 size_data_y;
-// starting color and color shift are all in hsva
-// hue is in degrees
-layout (location = 10) in vec4 color_start;
-layout (location = 11) in vec4 color_shift;
-// fade in, fade out, starting time, ending time
-layout (location = 12) in vec4 fade_time_data;
+// Optional features, each enabled with a #define when compiling; see ParticleShader.
+// SINUSOID: sinusoidal motion, REVOLUTION: revolution around the emitter, GROWTH: size changes over time,
+// HSV: hue or saturation changes over time, TRACKED: emitter is dynamically tracked,
+// CULLED: particles are drawn from a list of live, visible particles written by cull.comp, see ParticleCuller.
+
+#ifdef CULLED
+#define PULL_PARTICLES
+// index of the particle to draw in the shared particle buffer, written by cull.comp
+layout (location = 0) in int particle_index;
+#endif
+
+#include "particle_common.glsl"
 
 uniform mat4 projection;
 uniform float time;
 uniform vec2 textureScale;
 uniform vec2 spriteCenter;
 uniform float viewportAlpha;
+uniform bool useTextureArray;
 
-struct TrackedEmitterData {
-  vec2 pos;
-  float angle;
-  bool is_smooth;
+// a sprite's place in a sprite array; only bound if useTextureArray is set
+struct SpriteEntry {
+  // texture coordinate offset, then scale
+  vec4 uv_rect;
+  // sprite center, then array layer
+  vec4 center_layer;
 };
 
-layout (std430, binding=1) buffer TrackedEmitters {
-  TrackedEmitterData data[];
+layout (std430, binding=9) readonly buffer SpriteEntries {
+  SpriteEntry sprite_entries[];
 };
 
 const vec2 vert_locs[4] = vec2[] (
@@ -49,10 +41,7 @@ const vec2 vert_locs[4] = vec2[] (
 
 out vec2 tex_coord;
 out vec4 color;
-
-mat2 rot_mat(float angle) {
-  return mat2(cos(angle), sin(angle), -sin(angle), cos(angle));
-}
+flat out int tex_layer;
 
 // source: http://lolengine.net/blog/2013/07/27/rgb-to-hsv-in-glsl
 vec4 to_rgba(vec4 hsva) {
@@ -62,33 +51,45 @@ vec4 to_rgba(vec4 hsva) {
   return vec4(hsva_c.z * mix(K.xxx, clamp(p - K.xxx, 0.0, 1.0), hsva_c.y), hsva_c.w);
 }
 
-void main() {
-  float lifetime = fade_time_data.w - fade_time_data.z;
-  float elapsed = time - fade_time_data.z;
-  TrackedEmitterData tracked_emitter_data = data[int(max(0.f, tracked_emitter_index))];
-  float interp = float(tracked_emitter_index >= 0) * (tracked_emitter_data.is_smooth ? elapsed/lifetime : 1.f);
-  vec2 emitter_pos = pos_emitter_pos.zw + (tracked_emitter_data.pos - pos_emitter_pos.zw) * interp;
-  float emitter_xdir = emitter_forward_dir + (tracked_emitter_data.angle - emitter_forward_dir) * interp;
-
-  float revolution_angle = elapsed*radial_data.x + 0.5f* elapsed*elapsed*radial_data.y;
+vec4 rgb_color(float elapsed) {
+  return vec4(clamp(color_shift.x + elapsed * color_shift.y, 0.f, 1.f) * color_start.rgb, clamp(color_start.a + elapsed * color_shift.z, 0.f, 1.f));
+}
 
-  vec2 particle_pos = pos_emitter_pos.xy + elapsed*vel_acc.xy + 0.5f*elapsed*elapsed*vel_acc.zw;
-  particle_pos += vec2(sinusoid_x.x * sin(sinusoid_x.y * elapsed + sinusoid_x.z), sinusoid_y.x * sin(sinusoid_y.y * elapsed + sinusoid_y.z));
-  // so that new_pos = pos at t = 0
-  particle_pos -= vec2(sinusoid_x.x * sin(sinusoid_x.z), sinusoid_y.x * sin(sinusoid_y.z));
-  particle_pos = rot_mat(revolution_angle + emitter_xdir) * particle_pos + emitter_pos;
+void main() {
+#ifdef CULLED
+  load_particle(particle_index);
+#endif
+  float lifetime = time_data.y - time_data.x;
+  float elapsed = time - time_data.x;
+  float emitter_xdir;
+  vec2 emitter_pos = emitter_state(elapsed, lifetime, emitter_xdir);
+  vec2 particle_pos = particle_position(elapsed, emitter_pos, emitter_xdir);
 
   float facing_angle = angle_data.x + elapsed*angle_data.y + 0.5f*elapsed*elapsed*angle_data.z;
+  vec4 uv_rect = vec4(0.f, 0.f, textureScale);
+  vec2 sprite_center = spriteCenter;
+  tex_layer = 0;
+  if (useTextureArray) {
+    SpriteEntry entry = sprite_entries[bursts[burst_id & ~RGB_FLAG].sprite_index];
+    uv_rect = entry.uv_rect;
+    sprite_center = entry.center_layer.xy;
+    tex_layer = int(entry.center_layer.z);
+  }
+
   vec2 vert_loc = vert_locs[gl_VertexID];
-  vec2 size = vec2(size_data_x.x + elapsed*size_data_x.y + 0.5f*elapsed*elapsed*size_data_x.z, size_data_y.x + elapsed*size_data_y.y + 0.5*elapsed*elapsed*size_data_y.z);
-  vec2 vert_pos = rot_mat(facing_angle + emitter_xdir) * (size * vert_loc - size * spriteCenter);
+  vec2 size = particle_size(elapsed);
+  vec2 vert_pos = rot_mat(facing_angle + emitter_xdir) * (size * vert_loc - size * sprite_center);
 
   gl_Position = projection * vec4(vert_pos.x + particle_pos.x, vert_pos.y + particle_pos.y, 1.f, 1.f);
 
-  tex_coord = vert_loc * textureScale;
+  tex_coord = uv_rect.xy + vert_loc * uv_rect.zw;
 
-  float alpha = viewportAlpha * min(1.f / fade_time_data.x * elapsed, min(1.f, lifetime / fade_time_data.y - elapsed / fade_time_data.y));
+  float alpha = viewportAlpha * min(1.f / fade_data.x * elapsed, min(1.f, lifetime / fade_data.y - elapsed / fade_data.y));
   vec4 dead_color = vec4(0.f, 0.f, 0.f, 0.f);
-  vec4 alive_color = to_rgba(color_start + elapsed * color_shift);
+#ifdef HSV
+  vec4 alive_color = (burst_id & RGB_FLAG) != 0 ? rgb_color(elapsed) : to_rgba(color_start + elapsed * color_shift);
+#else
+  vec4 alive_color = rgb_color(elapsed);
+#endif
   color = mix(alive_color, dead_color, float(elapsed > lifetime || size.x <= 0 || size.y <= 0)) * vec4(1.f, 1.f, 1.f, alpha);
 }
\ No newline at end of file
@@ -0,0 +1,146 @@
+// Particle data and motion shared by particle.vert and cull.comp. Included with #include, see Shader.
+// If PULL_PARTICLES is defined, particle data is read from ParticleRecords by load_particle instead of coming in as
+// vertex attributes; otherwise, the includer must be a vertex shader.
+
+#ifdef PULL_PARTICLES
+// Raw particle data, laid out as in Particles.VERTEX_ATTRIB_SIZES, VERTEX_ATTRIB_TYPES, and BYTES_PER_PARTICLE
+layout (std430, binding=3) readonly buffer ParticleRecords {
+  uint records[];
+};
+
+// Number of 4-byte words per particle
+const int PARTICLE_WORDS = 25;
+
+int burst_id;
+vec2 pos;
+vec4 vel_acc;
+vec3 sinusoid_x;
+vec3 sinusoid_y;
+vec3 angle_data;
+vec2 radial_data;
+vec3 size_data_x;
+vec3 size_data_y;
+vec4 color_start;
+vec4 color_shift;
+vec2 fade_data;
+vec2 time_data;
+
+vec4 unpack_half4(int word) {
+  return vec4(unpackHalf2x16(records[word]), unpackHalf2x16(records[word + 1]));
+}
+
+// Reads particle number index into the globals above.
+void load_particle(int index) {
+  int base = index * PARTICLE_WORDS;
+  burst_id = int(records[base]);
+  pos = uintBitsToFloat(uvec2(records[base + 1], records[base + 2]));
+  vel_acc = uintBitsToFloat(uvec4(records[base + 3], records[base + 4], records[base + 5], records[base + 6]));
+  sinusoid_x = unpack_half4(base + 7).xyz;
+  sinusoid_y = unpack_half4(base + 9).xyz;
+  angle_data = unpack_half4(base + 11).xyz;
+  radial_data = unpackHalf2x16(records[base + 13]);
+  size_data_x = unpack_half4(base + 14).xyz;
+  size_data_y = unpack_half4(base + 16).xyz;
+  color_start = unpack_half4(base + 18);
+  color_shift = unpack_half4(base + 20);
+  fade_data = unpackHalf2x16(records[base + 22]);
+  time_data = uintBitsToFloat(uvec2(records[base + 23], records[base + 24]));
+}
+#else
+// index into bursts, see BurstData
+// bit 30 is set if the particle's color is stored as RGB rather than HSVA, see RGB_FLAG
+layout (location = 0) in int burst_id;
+// particle's location at t=0
+layout (location = 1) in vec2 pos;
+// first 2 are velocity vector, last 2 are acceleration vector
+layout (location = 2) in vec4 vel_acc;
+// amplitude, frequency, and phase of sinusoidal motion along global x axis
+layout (location = 3) in vec3 sinusoid_x;
+// amplitude, frequency, and phase of sinusoidal motion along global y axis
+layout (location = 4) in vec3 sinusoid_y;
+// elements are direction, angular velocity, and angular acceleration
+layout (location = 5) in vec3 angle_data;
+// circle the initial position with the given angular velocity and acceleration
+layout (location = 6) in vec2 radial_data;
+// elements are scale, growth rate, and growth acceleration
+layout (location = 7) in vec3 size_data_x;
+layout (location = 8) in vec3 size_data_y;
+// starting color and color shift are all in hsva
+// hue is in degrees
+// if stored as RGB, color_start is rgb at full value plus starting alpha,
+// and color_shift is starting value, value shift, and alpha shift
+layout (location = 9) in vec4 color_start;
+layout (location = 10) in vec4 color_shift;
+// fade in, fade out
+layout (location = 11) in vec2 fade_data;
+// starting time, ending time
+layout (location = 12) in vec2 time_data;
+#endif
+
+struct TrackedEmitterData {
+  vec2 pos;
+  float angle;
+  bool is_smooth;
+};
+
+layout (std430, binding=1) buffer TrackedEmitters {
+  TrackedEmitterData data[];
+};
+
+// emitter's state when the burst was generated
+struct BurstData {
+  vec2 emitter_pos;
+  float emitter_forward_dir;
+  // -1 if not tracking any emitter
+  int tracked_emitter_index;
+  // entry of the emitter's sprite in the bound sprite array, if drawing from one; see SpriteArray
+  int sprite_index;
+};
+
+layout (std430, binding=2) readonly buffer Bursts {
+  BurstData bursts[];
+};
+
+const int RGB_FLAG = 1 << 30;
+
+mat2 rot_mat(float angle) {
+  return mat2(cos(angle), sin(angle), -sin(angle), cos(angle));
+}
+
+// Returns the emitter's location and sets emitter_xdir to its facing, as seen by the particle.
+vec2 emitter_state(float elapsed, float lifetime, out float emitter_xdir) {
+  BurstData burst = bursts[burst_id & ~RGB_FLAG];
+#ifdef TRACKED
+  TrackedEmitterData tracked_emitter_data = data[max(0, burst.tracked_emitter_index)];
+  float interp = float(burst.tracked_emitter_index >= 0) * (tracked_emitter_data.is_smooth ? elapsed/lifetime : 1.f);
+  emitter_xdir = burst.emitter_forward_dir + (tracked_emitter_data.angle - burst.emitter_forward_dir) * interp;
+  return burst.emitter_pos + (tracked_emitter_data.pos - burst.emitter_pos) * interp;
+#else
+  emitter_xdir = burst.emitter_forward_dir;
+  return burst.emitter_pos;
+#endif
+}
+
+vec2 particle_position(float elapsed, vec2 emitter_pos, float emitter_xdir) {
+#ifdef REVOLUTION
+  float revolution_angle = elapsed*radial_data.x + 0.5f* elapsed*elapsed*radial_data.y;
+#else
+  float revolution_angle = 0.f;
+#endif
+
+  vec2 particle_pos = pos + elapsed*vel_acc.xy + 0.5f*elapsed*elapsed*vel_acc.zw;
+#ifdef SINUSOID
+  particle_pos += vec2(sinusoid_x.x * sin(sinusoid_x.y * elapsed + sinusoid_x.z), sinusoid_y.x * sin(sinusoid_y.y * elapsed + sinusoid_y.z));
+  // so that new_pos = pos at t = 0
+  particle_pos -= vec2(sinusoid_x.x * sin(sinusoid_x.z), sinusoid_y.x * sin(sinusoid_y.z));
+#endif
+  return rot_mat(revolution_angle + emitter_xdir) * particle_pos + emitter_pos;
+}
+
+vec2 particle_size(float elapsed) {
+#ifdef GROWTH
+  return vec2(size_data_x.x + elapsed*size_data_x.y + 0.5f*elapsed*elapsed*size_data_x.z, size_data_y.x + elapsed*size_data_y.y + 0.5*elapsed*elapsed*size_data_y.z);
+#else
+  return vec2(size_data_x.x, size_data_y.x);
+#endif
+}